@@ -0,0 +1,53 @@
+package org.integratedmodelling.klab.nifi;
+
+/**
+ * Point-in-time counters of one of the bounded caches or pools kept by a {@link KlabController}.
+ */
+public class CacheStatistics {
+  private final long size;
+  private final long hits;
+  private final long misses;
+  private final long evictions;
+
+  public CacheStatistics(long size, long hits, long misses, long evictions) {
+    this.size = size;
+    this.hits = hits;
+    this.misses = misses;
+    this.evictions = evictions;
+  }
+
+  /** Number of live entries. */
+  public long getSize() {
+    return size;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  /** Entries dropped because they expired or exceeded the capacity. */
+  public long getEvictions() {
+    return evictions;
+  }
+
+  public double getHitRatio() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  @Override
+  public String toString() {
+    return "size="
+        + size
+        + ", hits="
+        + hits
+        + ", misses="
+        + misses
+        + ", evictions="
+        + evictions;
+  }
+}
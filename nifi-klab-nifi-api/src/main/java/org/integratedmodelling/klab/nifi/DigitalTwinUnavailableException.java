@@ -0,0 +1,12 @@
+package org.integratedmodelling.klab.nifi;
+
+/**
+ * Thrown without contacting a digital twin when recent calls to it have failed too often for new
+ * ones to be worth attempting. The digital twin is tried again after a while.
+ */
+public class DigitalTwinUnavailableException extends RuntimeException {
+
+  public DigitalTwinUnavailableException(String message) {
+    super(message);
+  }
+}
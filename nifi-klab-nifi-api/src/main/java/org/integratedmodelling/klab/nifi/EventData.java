@@ -1,23 +1,77 @@
 package org.integratedmodelling.klab.nifi;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+/**
+ * An event relayed to the listeners of a {@link KlabController}. The same instance is shared by
+ * all the listeners receiving the event, so the payload is only obtained when first asked for and
+ * serialized at most once, however many listeners write it out.
+ */
 public class EventData {
-    private final Object payload;
+    private final Supplier<?> payloadSupplier;
+    private final Function<Object, String> serializer;
     private final Map<String, String> attributes;
     private final long timestamp;
+    private Object payload;
+    private boolean payloadLoaded;
+    private volatile byte[] serializedPayload;
 
     public EventData(Object payload, Map<String, String> attributes) {
-        this.payload = payload;
+        this(() -> payload, String::valueOf, attributes);
+    }
+
+    /**
+     * @param payload supplies the payload the first time it is needed
+     * @param serializer turns the payload into its textual (e.g. JSON) form
+     * @param attributes the attributes of the event
+     */
+    public EventData(
+        Supplier<?> payload, Function<Object, String> serializer, Map<String, String> attributes) {
+        this.payloadSupplier = payload;
+        this.serializer = serializer;
     this.attributes = new HashMap<>(attributes);
         this.timestamp = System.currentTimeMillis();
         this.attributes.put("event.timestamp", String.valueOf(timestamp));
     }
 
     // Getters
-    public Object getPayload() { return payload; }
+    public synchronized Object getPayload() {
+        if (!payloadLoaded) {
+            payload = payloadSupplier.get();
+            payloadLoaded = true;
+        }
+        return payload;
+    }
+
+    /**
+     * The serialized payload as UTF-8 bytes, computed on the first call. The array is shared and
+     * must not be modified.
+     */
+    public byte[] getSerializedPayload() {
+        byte[] ret = serializedPayload;
+        if (ret == null) {
+            synchronized (this) {
+                if (serializedPayload == null) {
+                    serializedPayload =
+                        serializer.apply(getPayload()).getBytes(StandardCharsets.UTF_8);
+                }
+                ret = serializedPayload;
+            }
+        }
+        return ret;
+    }
+
+    /** Write the serialized payload to the stream, without copying it. */
+    public void writePayload(OutputStream out) throws IOException {
+        out.write(getSerializedPayload());
+    }
+
     public Map<String, String> getAttributes() { return attributes; }
     public long getTimestamp() { return timestamp; }
 }
-
@@ -0,0 +1,92 @@
+package org.integratedmodelling.klab.nifi;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+
+/**
+ * Selects the k.LAB messages delivered to an event listener. The controller evaluates the filter
+ * on the raw message, before converting it, so filtered out messages cost almost nothing. Each
+ * criterion left empty accepts anything.
+ */
+public class EventFilter {
+
+  /** A filter accepting every message. */
+  public static final EventFilter ALL = new Builder().build();
+
+  private final Set<Message.Queue> queues;
+  private final Set<Message.MessageClass> messageClasses;
+  private final Set<Message.MessageType> messageTypes;
+  private final Set<String> sources;
+
+  private EventFilter(Builder builder) {
+    this.queues = Set.copyOf(builder.queues);
+    this.messageClasses = Set.copyOf(builder.messageClasses);
+    this.messageTypes = Set.copyOf(builder.messageTypes);
+    this.sources = Set.copyOf(builder.sources);
+  }
+
+  /**
+   * @param message the message received
+   * @param source the URL of the digital twin whose scope received the message, or null for the
+   *     user scope of the controller
+   */
+  public boolean accepts(Message message, String source) {
+    return (queues.isEmpty() || queues.contains(message.getQueue()))
+        && (messageClasses.isEmpty() || messageClasses.contains(message.getMessageClass()))
+        && (messageTypes.isEmpty() || messageTypes.contains(message.getMessageType()))
+        && (sources.isEmpty() || (source != null && sources.contains(source)));
+  }
+
+  /** Getters */
+  public Set<Message.Queue> getQueues() {
+    return queues;
+  }
+
+  public Set<Message.MessageClass> getMessageClasses() {
+    return messageClasses;
+  }
+
+  public Set<Message.MessageType> getMessageTypes() {
+    return messageTypes;
+  }
+
+  public Set<String> getSources() {
+    return sources;
+  }
+
+  public static class Builder {
+    private final Set<Message.Queue> queues = EnumSet.noneOf(Message.Queue.class);
+    private final Set<Message.MessageClass> messageClasses =
+        EnumSet.noneOf(Message.MessageClass.class);
+    private final Set<Message.MessageType> messageTypes = EnumSet.noneOf(Message.MessageType.class);
+    private final Set<String> sources = new HashSet<>();
+
+    public Builder setQueues(Collection<Message.Queue> queues) {
+      this.queues.addAll(queues);
+      return this;
+    }
+
+    public Builder setMessageClasses(Collection<Message.MessageClass> messageClasses) {
+      this.messageClasses.addAll(messageClasses);
+      return this;
+    }
+
+    public Builder setMessageTypes(Collection<Message.MessageType> messageTypes) {
+      this.messageTypes.addAll(messageTypes);
+      return this;
+    }
+
+    /** Only accept messages received by the scopes of the digital twins at these URLs. */
+    public Builder setSources(Collection<String> dtUrls) {
+      this.sources.addAll(dtUrls);
+      return this;
+    }
+
+    public EventFilter build() {
+      return new EventFilter(this);
+    }
+  }
+}
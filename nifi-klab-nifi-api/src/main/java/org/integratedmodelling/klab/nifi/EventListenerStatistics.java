@@ -0,0 +1,39 @@
+package org.integratedmodelling.klab.nifi;
+
+/** Point-in-time counters of one event listener registered with a {@link KlabController}. */
+public class EventListenerStatistics {
+  private final String listener;
+  private final long lag;
+  private final long delivered;
+  private final long dropped;
+
+  public EventListenerStatistics(String listener, long lag, long delivered, long dropped) {
+    this.listener = listener;
+    this.lag = lag;
+    this.delivered = delivered;
+    this.dropped = dropped;
+  }
+
+  public String getListener() {
+    return listener;
+  }
+
+  /** Number of events published but not yet delivered to the listener. */
+  public long getLag() {
+    return lag;
+  }
+
+  public long getDelivered() {
+    return delivered;
+  }
+
+  /** Events the listener never received because the buffer was full. */
+  public long getDropped() {
+    return dropped;
+  }
+
+  @Override
+  public String toString() {
+    return listener + ": lag=" + lag + ", delivered=" + delivered + ", dropped=" + dropped;
+  }
+}
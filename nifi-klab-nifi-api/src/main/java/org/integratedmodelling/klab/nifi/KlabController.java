@@ -16,17 +16,37 @@
  */
 package org.integratedmodelling.klab.nifi;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.controller.ControllerService;
 import org.integratedmodelling.klab.api.exceptions.KlabAuthorizationException;
+import org.integratedmodelling.klab.api.knowledge.Observable;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.scope.ContextScope;
 import org.integratedmodelling.klab.api.scope.Scope;
 
 @Tags({"k.LAB", "Semantic Web"})
 @CapabilityDescription("k.LAB Service API.")
 public interface KlabController extends ControllerService {
 
+  /**
+   * Whether the controller has finished booting the engine and authenticating after being enabled.
+   * Processors should yield until the controller is {@link #READY}.
+   */
+  enum Readiness {
+    /** Engine boot, authentication or the warm-up connections are still in progress. */
+    STARTING,
+    /** The controller is authenticated and can connect digital twins. */
+    READY,
+    /** Authentication failed; the controller keeps retrying in the background. */
+    FAILED
+  }
+
+  Readiness getReadiness();
+
   /**
    * Return the k.LAB scope configured in the processor, whose specific class depends on
    * configuration.
@@ -38,13 +58,84 @@ public interface KlabController extends ControllerService {
 
   Scope getScope(String dtURL, Class<? extends Scope> scopeClass);
 
+  /**
+   * Register a listener for all the events of the k.LAB scopes. Events are delivered on a thread
+   * dedicated to the listener, through a bounded buffer shared by all listeners.
+   */
   void addEventListener(Consumer<EventData> listener);
 
+  /**
+   * Register a listener for the events of the k.LAB scopes accepted by the filter. Only the queues
+   * the controller listens to can be selected. Adding a listener again replaces its filter.
+   */
+  void addEventListener(Consumer<EventData> listener, EventFilter filter);
+
+  /** Unregister a listener; it must be the same instance that was added. */
   void removeEventListener(Consumer<EventData> listener);
 
+  /** @return the delivery lag and counters of each registered event listener */
+  List<EventListenerStatistics> getEventListenerStatistics();
+
   void addScope(String dtURL, Scope scope) throws KlabAuthorizationException;
 
   Scope createScope(String dtURL) throws KlabAuthorizationException;
 
+  /**
+   * Return the scope of the digital twin at the passed URL, authenticating and connecting to it if
+   * it is not already connected. Concurrent requests for the same DT share a single connection
+   * attempt.
+   *
+   * @param dtURL the URL of the digital twin
+   * @return the connected scope, or null if the digital twin could not be connected
+   * @throws DigitalTwinUnavailableException if the circuit breaker of the digital twin is open
+   */
+  ContextScope getContextScope(String dtURL) throws KlabAuthorizationException;
+
   boolean containsDT(String dtUrl);
+
+  /**
+   * Resolve semantics into an observable using the reasoner of the passed scope. Resolutions are
+   * cached per reasoner and shared by all the processors using this controller.
+   *
+   * @param scope the scope providing the reasoner service
+   * @param semantics the semantics to resolve, e.g. "earth:Terrestrial earth:Region"
+   * @return the resolved observable, or null if the reasoner could not resolve it
+   */
+  Observable resolveObservable(Scope scope, String semantics);
+
+  CacheStatistics getObservableCacheStatistics();
+
+  /**
+   * Submit an observation to the scope, unless an identical request is already being resolved in
+   * it: in that case the future of the pending submission is returned and nothing is submitted.
+   * Identical requests are recognized by their fingerprint, across all the processors using this
+   * controller. If the controller limits the concurrency of submissions, the call waits for the
+   * digital twin to accept one more.
+   *
+   * @param dtURL the URL of the digital twin, or null for the scope configured in the controller
+   * @param fingerprint identifies the request the observation was built from
+   * @return the future resolution, possibly shared with other callers
+   * @throws SubmissionRejectedException if the digital twin did not accept a submission in time
+   * @throws DigitalTwinUnavailableException if the circuit breaker of the digital twin is open
+   */
+  CompletableFuture<Observation> submitObservation(
+      String dtURL, String fingerprint, ContextScope scope, Observation observation);
+
+  /**
+   * Record the duration of a processing phase, aggregated per digital twin and phase.
+   *
+   * @param dtURL the URL of the digital twin, or null for the scope configured in the controller
+   * @param phase the name of the phase, e.g. "parse" or "submit"
+   * @param nanos the duration in nanoseconds
+   */
+  void recordLatency(String dtURL, String phase, long nanos);
+
+  /** @return the latency distribution of each phase recorded, per digital twin */
+  List<LatencyStatistics> getLatencyStatistics();
+
+  /**
+   * @return statistics on the digital twin scopes kept by the controller: live scopes, lookup hits
+   *     and misses, and scopes closed by idle or size eviction
+   */
+  CacheStatistics getScopePoolStatistics();
 }
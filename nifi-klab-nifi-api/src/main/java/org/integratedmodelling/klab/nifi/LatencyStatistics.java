@@ -0,0 +1,72 @@
+package org.integratedmodelling.klab.nifi;
+
+/**
+ * Point-in-time latency distribution of one processing phase (e.g. parse, submit) for one digital
+ * twin, as recorded by the processors using a {@link KlabController}. Times are in microseconds.
+ */
+public class LatencyStatistics {
+  private final String digitalTwin;
+  private final String phase;
+  private final long count;
+  private final double mean;
+  private final long p50;
+  private final long p99;
+  private final long max;
+
+  public LatencyStatistics(
+      String digitalTwin, String phase, long count, double mean, long p50, long p99, long max) {
+    this.digitalTwin = digitalTwin;
+    this.phase = phase;
+    this.count = count;
+    this.mean = mean;
+    this.p50 = p50;
+    this.p99 = p99;
+    this.max = max;
+  }
+
+  /** The URL of the digital twin, or null for the scope configured in the controller. */
+  public String getDigitalTwin() {
+    return digitalTwin;
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public long getP50() {
+    return p50;
+  }
+
+  public long getP99() {
+    return p99;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return (digitalTwin == null ? "default scope" : digitalTwin)
+        + " "
+        + phase
+        + ": count="
+        + count
+        + String.format(", mean=%.1fus", mean)
+        + ", p50="
+        + p50
+        + "us, p99="
+        + p99
+        + "us, max="
+        + max
+        + "us";
+  }
+}
@@ -0,0 +1,12 @@
+package org.integratedmodelling.klab.nifi;
+
+/**
+ * Thrown when an observation is not submitted because the digital twin has as many submissions in
+ * flight as it can currently take. Nothing was sent: the request can be retried later as it is.
+ */
+public class SubmissionRejectedException extends RuntimeException {
+
+  public SubmissionRejectedException(String message) {
+    super(message);
+  }
+}
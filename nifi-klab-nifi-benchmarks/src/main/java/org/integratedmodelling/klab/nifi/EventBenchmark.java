@@ -0,0 +1,101 @@
+package org.integratedmodelling.klab.nifi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of k.LAB messages into {@link EventData} by the controller, and the paths writing
+ * events to FlowFile content: one event per FlowFile, or newline-delimited batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+  private static final String SOURCE = "https://services.integratedmodelling.org/runtime/main/dt/x";
+
+  private Message message;
+  private ByteArrayOutputStream out;
+
+  /* A message answering the getters used by the controller, with a small map as payload */
+  private static Message message() {
+    Map<String, Object> payload =
+        Map.of(
+            "id", 1234L,
+            "name", "example_observation",
+            "urn", "earth:Terrestrial earth:Region",
+            "metadata", Map.of("tiles", List.of(1, 2, 3), "status", "resolved"));
+    return (Message)
+        Proxy.newProxyInstance(
+            Message.class.getClassLoader(),
+            new Class<?>[] {Message.class},
+            (proxy, method, args) ->
+                switch (method.getName()) {
+                  case "getMessageType" -> Message.MessageType.values()[0];
+                  case "getMessageClass" -> Message.MessageClass.values()[0];
+                  case "getQueue" -> Message.Queue.values()[0];
+                  case "getTimestamp" -> 1_700_000_000_000L;
+                  case "getPayload" -> payload;
+                  case "hashCode" -> System.identityHashCode(proxy);
+                  case "equals" -> proxy == args[0];
+                  default -> null;
+                });
+  }
+
+  @Setup
+  public void setup() {
+    message = message();
+    out = new ByteArrayOutputStream(64 * 1024);
+  }
+
+  /** Conversion alone: the payload is not touched until a listener asks for it. */
+  @Benchmark
+  public EventData convertMessage() {
+    return KlabControllerService.convertMessageToEventData(message, SOURCE);
+  }
+
+  @Benchmark
+  public byte[] serializeEvent() {
+    return KlabControllerService.convertMessageToEventData(message, SOURCE).getSerializedPayload();
+  }
+
+  @Benchmark
+  public int writeEvent() throws IOException {
+    out.reset();
+    KlabControllerService.convertMessageToEventData(message, SOURCE).writePayload(out);
+    return out.size();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int writeBatch() throws IOException {
+    List<EventData> events = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      events.add(KlabControllerService.convertMessageToEventData(message, SOURCE));
+    }
+    out.reset();
+    MessageRelayProcessor.writeBatch(events, out);
+    return out.size();
+  }
+}
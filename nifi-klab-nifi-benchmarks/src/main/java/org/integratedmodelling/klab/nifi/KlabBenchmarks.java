@@ -0,0 +1,38 @@
+package org.integratedmodelling.klab.nifi;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the k.LAB NiFi benchmarks and writes the results as JSON, to {@code jmh-result.json} unless
+ * another file is passed with {@code -rff}, so that releases can be compared. All the usual JMH
+ * command line options are accepted, e.g. {@code java -jar benchmarks.jar Geometry -f 1}. Unless
+ * other profilers are passed with {@code -prof}, the GC profiler is enabled so that the results
+ * include the bytes allocated per operation ({@code gc.alloc.rate.norm}).
+ */
+public class KlabBenchmarks {
+
+  public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(commandLine);
+    if (commandLine.getIncludes().isEmpty()) {
+      builder.include("org\\.integratedmodelling\\.klab\\.nifi\\..*Benchmark");
+    }
+    if (commandLine.getProfilers().isEmpty()) {
+      builder.addProfiler(GCProfiler.class);
+    }
+    Options options =
+        builder
+            .resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON))
+            .result(commandLine.getResult().orElse(DEFAULT_RESULT_FILE))
+            .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,58 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** WKT validation and k.LAB geometry building from the space/time of a request. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeometryBenchmark {
+
+  private static final String WKT =
+      "POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))";
+
+  private KlabObservationNifiRequest.Geometry geometry;
+
+  @Setup
+  public void setup() throws Exception {
+    geometry =
+        KlabObservationNifiRequestCodec.read(
+                new ByteArrayInputStream(
+                    RequestCodecBenchmark.REQUEST.getBytes(StandardCharsets.UTF_8)))
+            .getGeometry();
+  }
+
+  @Benchmark
+  public boolean isValidWKT() {
+    return KlabObservationNifiRequest.Geometry.Space.isValidWKT(WKT);
+  }
+
+  /** Building the geometry every time, as each request did before the geometry cache. */
+  @Benchmark
+  public Geometry buildGeometry() {
+    GeometryCache.clear();
+    return GeometryCache.get(geometry);
+  }
+
+  /** The usual case of a sensor sending the same area of interest again. */
+  @Benchmark
+  public Geometry cachedGeometry() {
+    return GeometryCache.get(geometry);
+  }
+}
@@ -0,0 +1,108 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding and encoding of the observation requests carried by FlowFiles. The Gson decodes are the
+ * baselines the streaming codec replaced; run with {@code -prof gc} (the default of {@link
+ * org.integratedmodelling.klab.nifi.KlabBenchmarks}) to compare the bytes allocated per decode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestCodecBenchmark {
+
+  static final String REQUEST =
+      """
+      {
+        "geometry" : {
+          "space" : {
+            "shape" : "EPSG:4326 POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))",
+            "sgrid" : "1.km",
+            "proj" : "EPSG:4326"
+          },
+          "time" : {
+            "tstart" : 1325376000000,
+            "tend" : 1356998400000,
+            "tunit" : "year",
+            "tscope" : 1
+          }
+        },
+        "name" : "example_observation",
+        "semantics" : "earth:Terrestrial earth:Region",
+        "digitalTwin" : "https://services.integratedmodelling.org/runtime/main/dt/example",
+        "observationId" : -1
+      }
+      """;
+
+  private final Gson gson = new Gson();
+  private byte[] json;
+  private KlabObservationNifiRequest request;
+
+  @Setup
+  public void setup() throws Exception {
+    json = REQUEST.getBytes(StandardCharsets.UTF_8);
+    request = KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(json));
+  }
+
+  @Benchmark
+  public KlabObservationNifiRequest decode() throws Exception {
+    return KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(json));
+  }
+
+  /** The JSON tree parse followed by reflective binding, as the processors used to decode. */
+  @Benchmark
+  public KlabObservationNifiRequest decodeGsonTree() {
+    var tree =
+        JsonParser.parseReader(
+                new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8))
+            .getAsJsonObject();
+    return gson.fromJson(tree, KlabObservationNifiRequest.class);
+  }
+
+  /** Reflective binding straight from the stream, without the intermediate tree. */
+  @Benchmark
+  public KlabObservationNifiRequest decodeGson() {
+    return gson.fromJson(
+        new InputStreamReader(new ByteArrayInputStream(json), StandardCharsets.UTF_8),
+        KlabObservationNifiRequest.class);
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException {
+    var out = new ByteArrayOutputStream(json.length);
+    KlabObservationNifiRequestCodec.write(request, out);
+    return out.toByteArray();
+  }
+
+  /** The pretty-printed Gson serialization used by clients to build requests. */
+  @Benchmark
+  public String toJson() {
+    return request.toJson();
+  }
+
+  @Benchmark
+  public String fingerprint() {
+    return RequestFingerprint.of(request);
+  }
+}
@@ -2,8 +2,6 @@ package org.integratedmodelling.klab.nifi;
 
 import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_URN;
 
-import com.google.gson.Gson;
-
 import java.net.MalformedURLException;
 import java.util.List;
 import java.util.Set;
@@ -19,6 +17,7 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
 import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequestCodec;
 
 /** An example processor that builds a valid flowfile. */
 @Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins"})
@@ -155,7 +154,7 @@ public class KlabContextInputProcessor extends AbstractProcessor {
               flowFile,
               out -> {
                 // Write event data to FlowFile content
-                out.write(new Gson().toJson(request).getBytes());
+                KlabObservationNifiRequestCodec.write(request, out);
               });
 
       // Add attributes from event
@@ -4,29 +4,47 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
 import org.apache.nifi.annotation.lifecycle.OnDisabled;
 import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.InitializationException;
 import org.integratedmodelling.common.authentication.KlabCertificateImpl;
+import org.integratedmodelling.common.utils.Utils;
 import org.integratedmodelling.common.services.client.engine.EngineImpl;
 import org.integratedmodelling.klab.api.Klab;
 import org.integratedmodelling.klab.api.engine.Engine;
 import org.integratedmodelling.klab.api.exceptions.KlabAuthorizationException;
 import org.integratedmodelling.klab.api.identities.Federation;
+import org.integratedmodelling.klab.api.knowledge.Observable;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.scope.ContextScope;
 import org.integratedmodelling.klab.api.scope.Scope;
 import org.integratedmodelling.klab.api.scope.UserScope;
 import org.integratedmodelling.klab.api.services.KlabService;
-import org.integratedmodelling.klab.api.services.runtime.Channel;
+import org.integratedmodelling.klab.api.services.Reasoner;
 import org.integratedmodelling.klab.api.services.runtime.Message;
+import org.integratedmodelling.klab.nifi.utils.AdaptiveConcurrencyLimiter;
+import org.integratedmodelling.klab.nifi.utils.CircuitBreaker;
+import org.integratedmodelling.klab.nifi.utils.EventRingBuffer;
+import org.integratedmodelling.klab.nifi.utils.ExpiringLruCache;
+import org.integratedmodelling.klab.nifi.utils.FailureClassifier;
+import org.integratedmodelling.klab.nifi.utils.ScopePool;
 
 public class KlabControllerService extends AbstractControllerService
     implements KlabController {
@@ -51,15 +69,331 @@ public class KlabControllerService extends AbstractControllerService
           // .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
           .build();
 
+  public static final PropertyDescriptor OBSERVABLE_CACHE_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("observable-cache-size")
+          .displayName("Observable Cache Size")
+          .description(
+              "The maximum number of resolved observables kept in memory. Least recently used"
+                  + " observables are evicted first.")
+          .required(true)
+          .defaultValue("1000")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor OBSERVABLE_CACHE_TTL =
+      new PropertyDescriptor.Builder()
+          .name("observable-cache-ttl")
+          .displayName("Observable Cache Expiration")
+          .description(
+              "How long a resolved observable is reused before the reasoner is asked again."
+                  + " A value of 0 secs keeps observables until they are evicted by size.")
+          .required(true)
+          .defaultValue("1 hour")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor SCOPE_POOL_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("scope-pool-size")
+          .displayName("Maximum Connected Digital Twins")
+          .description(
+              "The maximum number of digital twin scopes kept connected. When the limit is"
+                  + " reached, the least recently used scope is closed to make room.")
+          .required(true)
+          .defaultValue("100")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor SCOPE_IDLE_TIMEOUT =
+      new PropertyDescriptor.Builder()
+          .name("scope-idle-timeout")
+          .displayName("Digital Twin Idle Timeout")
+          .description(
+              "How long a digital twin scope is kept after it was last used before it is closed."
+                  + " A value of 0 secs keeps scopes until they are evicted by size.")
+          .required(true)
+          .defaultValue("30 mins")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor AUTHENTICATION_REFRESH_INTERVAL =
+      new PropertyDescriptor.Builder()
+          .name("authentication-refresh-interval")
+          .displayName("Authentication Refresh Interval")
+          .description(
+              "How long the authenticated user scope is reused before authenticating again to"
+                  + " refresh its token. Digital twins already connected keep their scope.")
+          .required(true)
+          .defaultValue("1 hour")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor WARM_UP_DT_URLS =
+      new PropertyDescriptor.Builder()
+          .name("warm-up-dt-urls")
+          .displayName("Warm-up Digital Twin URLs")
+          .description(
+              "A comma-separated list of digital twin URLs to connect to as soon as the service is"
+                  + " enabled, so that the first FlowFiles do not pay for the connection. The"
+                  + " engine boot and the authentication always happen at enable time.")
+          .required(false)
+          .addValidator(
+              StandardValidators.createListValidator(true, true, StandardValidators.URL_VALIDATOR))
+          .build();
+
+  public static final AllowableValue OVERFLOW_BLOCK =
+      new AllowableValue(
+          "block",
+          "Block",
+          "Wait until the slowest listener has made room. No events are lost, but a stuck listener"
+              + " stalls the delivery of k.LAB messages.");
+
+  public static final AllowableValue OVERFLOW_DROP_OLDEST =
+      new AllowableValue(
+          "drop-oldest",
+          "Drop Oldest",
+          "Overwrite the oldest events, which the listeners lagging behind will never receive.");
+
+  public static final AllowableValue OVERFLOW_DROP_NEWEST =
+      new AllowableValue(
+          "drop-newest", "Drop Newest", "Discard incoming events until the listeners catch up.");
+
+  public static final PropertyDescriptor EVENT_BUFFER_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("event-buffer-size")
+          .displayName("Event Buffer Size")
+          .description(
+              "The number of k.LAB events buffered for the event listeners, i.e. how far the"
+                  + " slowest listener can fall behind before the overflow policy applies.")
+          .required(true)
+          .defaultValue("1024")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor EVENT_OVERFLOW_POLICY =
+      new PropertyDescriptor.Builder()
+          .name("event-overflow-policy")
+          .displayName("Event Overflow Policy")
+          .description("What to do with a k.LAB event when the event buffer is full.")
+          .required(true)
+          .allowableValues(OVERFLOW_BLOCK, OVERFLOW_DROP_OLDEST, OVERFLOW_DROP_NEWEST)
+          .defaultValue(OVERFLOW_DROP_OLDEST.getValue())
+          .build();
+
+  public static final AllowableValue CONCURRENCY_UNLIMITED =
+      new AllowableValue(
+          "unlimited", "Unlimited", "Submit observations as soon as the processors request it.");
+
+  public static final AllowableValue CONCURRENCY_ADAPTIVE =
+      new AllowableValue(
+          "adaptive",
+          "Adaptive",
+          "Limit the submissions in flight to each digital twin, growing the limit while the"
+              + " submissions complete within the target latency and shrinking it when they fail or"
+              + " take longer.");
+
+  public static final PropertyDescriptor CONCURRENCY_LIMIT =
+      new PropertyDescriptor.Builder()
+          .name("concurrency-limit")
+          .displayName("Submission Concurrency Limit")
+          .description(
+              "How many observations can be submitted to a digital twin without waiting for their"
+                  + " resolution. An adaptive limit keeps a slow digital twin from being swamped"
+                  + " by the processors submitting to it.")
+          .required(true)
+          .allowableValues(CONCURRENCY_UNLIMITED, CONCURRENCY_ADAPTIVE)
+          .defaultValue(CONCURRENCY_UNLIMITED.getValue())
+          .build();
+
+  public static final PropertyDescriptor INITIAL_CONCURRENCY =
+      new PropertyDescriptor.Builder()
+          .name("initial-concurrency")
+          .displayName("Initial Concurrency")
+          .description("The number of submissions in flight allowed to a newly used digital twin.")
+          .required(true)
+          .defaultValue("10")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(CONCURRENCY_LIMIT, CONCURRENCY_ADAPTIVE)
+          .build();
+
+  public static final PropertyDescriptor MAX_CONCURRENCY =
+      new PropertyDescriptor.Builder()
+          .name("max-concurrency")
+          .displayName("Maximum Concurrency")
+          .description("The maximum number of submissions in flight to one digital twin.")
+          .required(true)
+          .defaultValue("200")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(CONCURRENCY_LIMIT, CONCURRENCY_ADAPTIVE)
+          .build();
+
+  public static final PropertyDescriptor TARGET_SUBMISSION_LATENCY =
+      new PropertyDescriptor.Builder()
+          .name("target-submission-latency")
+          .displayName("Target Submission Latency")
+          .description(
+              "Submissions resolved within this time let the concurrency limit grow; slower ones"
+                  + " are treated as a sign of overload, like failures, and shrink it.")
+          .required(true)
+          .defaultValue("30 sec")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .dependsOn(CONCURRENCY_LIMIT, CONCURRENCY_ADAPTIVE)
+          .build();
+
+  public static final PropertyDescriptor SUBMISSION_PERMIT_TIMEOUT =
+      new PropertyDescriptor.Builder()
+          .name("submission-permit-timeout")
+          .displayName("Submission Permit Timeout")
+          .description(
+              "How long a processor waits for the digital twin to accept one more submission"
+                  + " before penalizing the FlowFile and returning it to its queue.")
+          .required(true)
+          .defaultValue("1 sec")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .dependsOn(CONCURRENCY_LIMIT, CONCURRENCY_ADAPTIVE)
+          .build();
+
+  public static final PropertyDescriptor SUBMISSION_TIMEOUT =
+      new PropertyDescriptor.Builder()
+          .name("submission-timeout")
+          .displayName("Submission Timeout")
+          .description(
+              "How long the resolution of a submitted observation may take before it fails with a"
+                  + " timeout, to be retried. A timed out submission gives back its concurrency"
+                  + " permit and counts as a failure of its digital twin, so that a digital twin"
+                  + " that stops answering cannot hold the permits forever.")
+          .required(true)
+          .defaultValue("10 min")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor CIRCUIT_BREAKER =
+      new PropertyDescriptor.Builder()
+          .name("circuit-breaker")
+          .displayName("Circuit Breaker")
+          .description(
+              "Whether to stop contacting a digital twin whose connections and submissions keep"
+                  + " failing with transient errors, such as timeouts. Observations failing on"
+                  + " their own, e.g. with semantics that cannot be resolved, do not count. While"
+                  + " its breaker is open, requests for it are routed to the unavailable"
+                  + " relationship of the processors at once.")
+          .required(true)
+          .allowableValues("true", "false")
+          .defaultValue("false")
+          .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor CIRCUIT_BREAKER_WINDOW =
+      new PropertyDescriptor.Builder()
+          .name("circuit-breaker-window")
+          .displayName("Circuit Breaker Window")
+          .description(
+              "The number of recent calls to a digital twin whose outcome decides whether its"
+                  + " breaker opens.")
+          .required(true)
+          .defaultValue("20")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(CIRCUIT_BREAKER, "true")
+          .build();
+
+  public static final PropertyDescriptor CIRCUIT_BREAKER_FAILURE_PERCENTAGE =
+      new PropertyDescriptor.Builder()
+          .name("circuit-breaker-failure-percentage")
+          .displayName("Circuit Breaker Failure Percentage")
+          .description(
+              "The percentage of failed calls in the window that opens the breaker of a digital"
+                  + " twin.")
+          .required(true)
+          .defaultValue("50")
+          .addValidator(StandardValidators.createLongValidator(1, 100, true))
+          .dependsOn(CIRCUIT_BREAKER, "true")
+          .build();
+
+  public static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_DURATION =
+      new PropertyDescriptor.Builder()
+          .name("circuit-breaker-open-duration")
+          .displayName("Circuit Breaker Open Duration")
+          .description(
+              "How long an open breaker rejects requests before a single probe request is let"
+                  + " through; the breaker closes if the probe succeeds.")
+          .required(true)
+          .defaultValue("30 sec")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .dependsOn(CIRCUIT_BREAKER, "true")
+          .build();
+
   private static final List<PropertyDescriptor> properties =
-      List.of(CERTIFICATE_PROPERTY, DEFAULT_QUEUES);
+      List.of(
+          CERTIFICATE_PROPERTY,
+          AUTHENTICATION_REFRESH_INTERVAL,
+          WARM_UP_DT_URLS,
+          DEFAULT_QUEUES,
+          OBSERVABLE_CACHE_SIZE,
+          OBSERVABLE_CACHE_TTL,
+          SCOPE_POOL_SIZE,
+          SCOPE_IDLE_TIMEOUT,
+          EVENT_BUFFER_SIZE,
+          EVENT_OVERFLOW_POLICY,
+          CONCURRENCY_LIMIT,
+          INITIAL_CONCURRENCY,
+          MAX_CONCURRENCY,
+          TARGET_SUBMISSION_LATENCY,
+          SUBMISSION_PERMIT_TIMEOUT,
+          SUBMISSION_TIMEOUT,
+          CIRCUIT_BREAKER,
+          CIRCUIT_BREAKER_WINDOW,
+          CIRCUIT_BREAKER_FAILURE_PERCENTAGE,
+          CIRCUIT_BREAKER_OPEN_DURATION);
+
+  /** Observables are cached per reasoner, as different reasoners may resolve differently. */
+  private record ObservableKey(Reasoner reasoner, String semantics) {}
+
+  private record SubmissionKey(ContextScope scope, String fingerprint) {}
 
-  private Map<String, Scope> scopeMap;
+  private record LatencyKey(String digitalTwin, String phase) {}
+
+  /* Delay before retrying a warm-up that could not authenticate */
+  private static final long WARM_UP_RETRY_SECONDS = 30;
+  /* How long disabling waits for the warm-up to notice that it was interrupted */
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+  private ScopePool scopePool;
+  private ScheduledExecutorService backgroundExecutor;
+  private volatile Readiness readiness = Readiness.STARTING;
+  /* Bumped on enable and disable, so that background work of an earlier enable publishes nothing */
+  private final AtomicLong generation = new AtomicLong();
+  private List<String> warmUpUrls = List.of();
   private String certificatePath;
   private Engine engine;
-  private UserScope userScope;
-  private Scope configuredScope;
+  private volatile UserScope userScope;
+  private volatile Scope configuredScope;
+  private volatile long authenticatedAt;
+  private volatile long authenticationRefreshNanos;
+  private boolean engineBooted;
+  private final Object authenticationLock = new Object();
+  private final Map<String, CompletableFuture<ContextScope>> connecting = new ConcurrentHashMap<>();
   private Federation federation;
+  private volatile ExpiringLruCache<ObservableKey, Observable> observableCache;
+  private final Map<SubmissionKey, CompletableFuture<Observation>> submissions =
+      new ConcurrentHashMap<>();
+  private final LongAdder coalescedSubmissions = new LongAdder();
+  private final Map<LatencyKey, Histogram> latencies = new ConcurrentHashMap<>();
+  /* Per digital twin URL, the configured scope being under the empty string; empty if unlimited */
+  private final Map<String, AdaptiveConcurrencyLimiter> concurrencyLimiters =
+      new ConcurrentHashMap<>();
+  private volatile boolean adaptiveConcurrency;
+  private int initialConcurrency;
+  private int maxConcurrency;
+  private long targetSubmissionLatencyNanos;
+  private long submissionPermitTimeoutNanos;
+  private volatile long submissionTimeoutNanos;
+  /* Per digital twin URL like the concurrency limiters; empty if the breakers are disabled */
+  private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+  private volatile boolean circuitBreaking;
+  private int circuitBreakerWindow;
+  private int circuitBreakerFailurePercentage;
+  private long circuitBreakerOpenNanos;
   private Set<Message.Queue> queues =
       EnumSet.of(Message.Queue.Events, Message.Queue.Errors, Message.Queue.Status);
 
@@ -83,77 +417,461 @@ public class KlabControllerService extends AbstractControllerService
 
   @Override
   public Scope getScope(String dtURL, Class<? extends Scope> scopeClass) {
-    return this.scopeMap.get(dtURL);
+    return this.scopePool.get(dtURL);
   }
 
   /*
-  TODO update info
-  Adds ContextScopes to the Scope Map if the relevant Scope
-  corresponding to the DT URL if absent
+  Adds ContextScopes to the Scope pool for the DT URL if absent. Kept for processors that connect
+  on their own; getContextScope() connects and pools in one step.
    */
   @Override
   public void addScope(String dtURL, Scope scope) throws KlabAuthorizationException {
-    if (this.scopeMap.containsKey(dtURL)) {
-      return; // TODO check if we need to override the current one
+    authenticatedUserScope();
+    this.scopePool.putIfAbsent(dtURL, scope);
+  }
+
+  @Override
+  public Scope createScope(String dtURL) throws KlabAuthorizationException {
+    return getContextScope(dtURL);
+  }
+
+  @Override
+  public ContextScope getContextScope(String dtURL) throws KlabAuthorizationException {
+    CircuitBreaker breaker = circuitBreaker(dtURL);
+    if (scopePool.get(dtURL) instanceof ContextScope contextScope) {
+      // no call is made to the DT here, so the probe is left to the submission that follows
+      if (breaker != null && breaker.isOpen()) {
+        throw unavailable(dtURL, breaker);
+      }
+      return contextScope;
     }
+
+    CompletableFuture<ContextScope> connection = new CompletableFuture<>();
+    CompletableFuture<ContextScope> inProgress = connecting.putIfAbsent(dtURL, connection);
+    if (inProgress != null) {
+      getLogger().debug("Waiting for the connection in progress to {}", dtURL);
+      try {
+        return inProgress.join();
+      } catch (CompletionException e) {
+        throw e.getCause() instanceof RuntimeException cause ? cause : e;
+      }
+    }
+
     try {
-      this.userScope = authenticateUserScope();
-    } catch (URISyntaxException | InitializationException e) {
-      throw new KlabAuthorizationException(e);
+      // another caller may have completed the connection since the pool was checked
+      ContextScope contextScope =
+          scopePool.get(dtURL) instanceof ContextScope pooled
+              ? pooled
+              : connectDigitalTwin(dtURL, breaker);
+      connection.complete(contextScope);
+      return contextScope;
+    } catch (RuntimeException e) {
+      connection.completeExceptionally(e);
+      throw e;
+    } finally {
+      connecting.remove(dtURL, connection);
     }
-    this.scopeMap.put(dtURL, scope);
+  }
 
-    this.engine.boot();
-    this.configuredScope =
-            this.userScope; // getScope would return the Userscope (and not the context scope) here
+  /*
+  Connect through the circuit breaker of the DT, if any: a connection is a call like a submission,
+  taking the probe when half open and counting as a success or a failure.
+   */
+  private ContextScope connectDigitalTwin(String dtURL, CircuitBreaker breaker)
+      throws KlabAuthorizationException {
+    if (breaker == null) {
+      return connectDigitalTwin(dtURL);
+    }
+    if (!breaker.tryAcquire()) {
+      throw unavailable(dtURL, breaker);
+    }
+    ContextScope ret;
+    try {
+      ret = connectDigitalTwin(dtURL);
+    } catch (KlabAuthorizationException e) {
+      // failing to authenticate says nothing about the digital twin
+      breaker.release();
+      throw e;
+    } catch (RuntimeException e) {
+      breaker.onFailure();
+      throw e;
+    }
+    if (ret == null) {
+      breaker.onFailure();
+    } else {
+      breaker.onSuccess();
+    }
+    return ret;
+  }
 
-    // Set up a message listener for the configured scope
-    if (this.configuredScope != null) {
-      setupMessageListener();
+  private ContextScope connectDigitalTwin(String dtURL) throws KlabAuthorizationException {
+    long enabled = generation.get();
+    ContextScope contextScope = authenticatedUserScope().connect(Utils.URLs.newURL(dtURL));
+    if (contextScope == null) {
+      return null;
+    }
+    if (enabled != generation.get()) {
+      // disabled while connecting: the pool has been cleared and would never close the scope
+      closeScope(contextScope);
+      return null;
     }
+    ContextScope pooled = (ContextScope) scopePool.putIfAbsent(dtURL, contextScope);
+    if (pooled == contextScope) {
+      // messages from the DT scope are tagged with its URL, so that listeners can filter on it
+      contextScope.onMessage(
+          (channel, message) -> handleKlabMessage(dtURL, message),
+          queues.toArray(new Message.Queue[0]));
+    }
+    getLogger().info("Connected to digital twin {}", dtURL);
+    return pooled;
+  }
 
-    getLogger()
-            .info("Initialization done for the UserScope from the Certificate for the federation");
+  /*
+  Return the authenticated user scope, authenticating and booting the engine on first use and once
+  the authentication is older than the refresh interval. Concurrent callers wait for a single
+  authentication instead of each running their own.
+   */
+  private UserScope authenticatedUserScope() throws KlabAuthorizationException {
+    UserScope ret = this.userScope;
+    if (ret != null && System.nanoTime() - authenticatedAt < authenticationRefreshNanos) {
+      return ret;
+    }
+    synchronized (authenticationLock) {
+      if (this.userScope != null
+          && System.nanoTime() - authenticatedAt < authenticationRefreshNanos) {
+        return this.userScope;
+      }
+      long enabled = generation.get();
+      UserScope authenticated;
+      try {
+        authenticated = authenticateUserScope();
+      } catch (URISyntaxException | InitializationException e) {
+        throw new KlabAuthorizationException(e);
+      }
+      if (enabled != generation.get()) {
+        closeScope(authenticated);
+        throw new KlabAuthorizationException(
+            "The k.LAB controller was disabled while authenticating");
+      }
+      if (!engineBooted) {
+        this.engine.boot();
+        engineBooted = true;
+      }
+      UserScope previous = this.userScope;
+      boolean refreshed = previous != null;
+      this.authenticatedAt = System.nanoTime();
+      this.userScope = authenticated;
+      // getScope would return the Userscope (and not the context scope) here
+      this.configuredScope = authenticated;
+
+      // A refresh may return the scope already listened to, which must not be registered twice
+      if (authenticated != null && authenticated != previous) {
+        setupMessageListener(authenticated);
+      }
+
+      getLogger()
+          .info(
+              refreshed
+                  ? "Authentication refreshed for the UserScope from the Certificate"
+                  : "Initialization done for the UserScope from the Certificate for the federation");
+      return authenticated;
+    }
   }
 
   @Override
-  public Scope createScope(String dtURL) throws KlabAuthorizationException {
-    if (scopeMap.containsKey(dtURL)) {
-      getLogger().info("Scope already exists.");
-      return scopeMap.get(dtURL);
+  public boolean containsDT(String dtUrl) {
+    return scopePool.contains(dtUrl);
+  }
+
+  @Override
+  public CacheStatistics getScopePoolStatistics() {
+    return scopePool.getStatistics();
+  }
+
+  /*
+  Release a scope dropped from the pool. The user scope may be pooled for some DTs but is shared by
+  the whole service, so it is never closed here.
+   */
+  private void closeScope(Scope scope) {
+    if (scope == this.userScope || !(scope instanceof AutoCloseable closeable)) {
+      return;
     }
     try {
-      this.userScope = authenticateUserScope();
-    } catch (URISyntaxException | InitializationException e) {
-      throw new KlabAuthorizationException(e);
+      closeable.close();
+    } catch (Exception e) {
+      getLogger().warn("Error closing evicted scope", e);
     }
-    this.engine.boot();
-    // getScope would return the Userscope (and not the context scope) here
-    this.configuredScope = this.userScope;
+  }
 
-    this.scopeMap.put(dtURL, userScope);
+  @Override
+  public Observable resolveObservable(Scope scope, String semantics) {
+    Reasoner reasoner = scope.getService(Reasoner.class);
+    return observableCache.get(
+        new ObservableKey(reasoner, semantics), key -> reasoner.resolveObservable(semantics));
+  }
 
-    return userScope;
+  @Override
+  public CacheStatistics getObservableCacheStatistics() {
+    return observableCache.getStatistics();
   }
 
+  /*
+  Single-flight submission: the first request for a fingerprint submits, identical ones arriving
+  before it completes share its future. The entry is dropped on completion, so later requests
+  submit again unless they are deduplicated by the processor. A placeholder future is put in the
+  map and completed with the outcome of the submission, which is made outside the map so that no
+  bin lock is held during a possibly remote call.
+   */
   @Override
-  public boolean containsDT(String dtUrl) {
-    return scopeMap.containsKey(dtUrl);
+  public CompletableFuture<Observation> submitObservation(
+      String dtURL, String fingerprint, ContextScope scope, Observation observation) {
+    var key = new SubmissionKey(scope, fingerprint);
+    CompletableFuture<Observation> pending = submissions.get(key);
+    if (pending != null) {
+      return coalesced(fingerprint, pending);
+    }
+
+    CircuitBreaker breaker = circuitBreaker(dtURL);
+    if (breaker != null && !breaker.tryAcquire()) {
+      throw unavailable(dtURL, breaker);
+    }
+    // Only actual submissions take a permit, so that coalesced requests never wait
+    AdaptiveConcurrencyLimiter limiter;
+    try {
+      limiter = acquirePermit(dtURL);
+    } catch (SubmissionRejectedException e) {
+      if (breaker != null) {
+        breaker.release();
+      }
+      throw e;
+    }
+
+    CompletableFuture<Observation> ret = new CompletableFuture<>();
+    pending = submissions.putIfAbsent(key, ret);
+    if (pending != null) {
+      // an identical request got in first while the permits were acquired
+      if (limiter != null) {
+        limiter.release();
+      }
+      if (breaker != null) {
+        breaker.release();
+      }
+      return coalesced(fingerprint, pending);
+    }
+
+    // the scope is not closed under the submission if it leaves the pool before completion
+    ScopePool pool = scopePool;
+    pool.acquire(scope);
+    long start = System.nanoTime();
+    ret.whenComplete(
+        (result, error) -> {
+          submissions.remove(key, ret);
+          pool.release(scope);
+          // an observation failing on its own merits was still answered by the digital twin
+          boolean failed = error != null && FailureClassifier.isTransient(error);
+          if (limiter != null) {
+            limiter.release(start, failed);
+          }
+          if (breaker != null) {
+            if (failed) {
+              breaker.onFailure();
+            } else {
+              breaker.onSuccess();
+            }
+          }
+        });
+    // a submission that is never answered fails, giving back its permits
+    ret.orTimeout(submissionTimeoutNanos, TimeUnit.NANOSECONDS);
+    try {
+      scope
+          .submit(observation)
+          .whenComplete(
+              (result, error) -> {
+                if (error == null) {
+                  ret.complete(result);
+                } else {
+                  ret.completeExceptionally(error);
+                }
+              });
+    } catch (RuntimeException e) {
+      // requests coalesced in the meantime fail with the submission
+      ret.completeExceptionally(e);
+      throw e;
+    }
+    return ret;
+  }
+
+  private CompletableFuture<Observation> coalesced(
+      String fingerprint, CompletableFuture<Observation> pending) {
+    coalescedSubmissions.increment();
+    getLogger().debug("Observation request {} already in flight, sharing it", fingerprint);
+    return pending;
   }
 
+  private CircuitBreaker circuitBreaker(String dtURL) {
+    if (!circuitBreaking) {
+      return null;
+    }
+    return circuitBreakers.computeIfAbsent(
+        dtURL == null ? "" : dtURL,
+        url ->
+            new CircuitBreaker(
+                circuitBreakerWindow,
+                circuitBreakerFailurePercentage,
+                circuitBreakerOpenNanos,
+                TimeUnit.NANOSECONDS));
+  }
+
+  private DigitalTwinUnavailableException unavailable(String dtURL, CircuitBreaker breaker) {
+    getLogger().debug("Circuit breaker of digital twin {} is open ({})", dtURL, breaker);
+    return new DigitalTwinUnavailableException(
+        "Digital twin " + dtURL + " is unavailable: " + breaker);
+  }
+
+  /*
+  Wait for the limiter of the DT to accept one more submission, and return it so that the permit
+  can be released on completion. Returns null when the concurrency is unlimited.
+   */
+  private AdaptiveConcurrencyLimiter acquirePermit(String dtURL) {
+    if (!adaptiveConcurrency) {
+      return null;
+    }
+    AdaptiveConcurrencyLimiter limiter =
+        concurrencyLimiters.computeIfAbsent(
+            dtURL == null ? "" : dtURL,
+            url ->
+                new AdaptiveConcurrencyLimiter(
+                    initialConcurrency,
+                    1,
+                    maxConcurrency,
+                    targetSubmissionLatencyNanos,
+                    TimeUnit.NANOSECONDS));
+    try {
+      if (limiter.acquire(submissionPermitTimeoutNanos, TimeUnit.NANOSECONDS)) {
+        return limiter;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    getLogger().debug("Digital twin {} saturated ({}), submission rejected", dtURL, limiter);
+    throw new SubmissionRejectedException(
+        "Digital twin " + dtURL + " is not accepting more submissions (" + limiter + ")");
+  }
+
+  /*
+  Durations are kept in microseconds with 3 significant digits; the histograms resize themselves
+  as longer durations are recorded, and recording does not lock.
+   */
   @Override
-  public void addEventListener(Consumer<EventData> listener) {}
+  public void recordLatency(String dtURL, String phase, long nanos) {
+    latencies
+        .computeIfAbsent(new LatencyKey(dtURL, phase), key -> new ConcurrentHistogram(3))
+        .recordValue(Math.max(0, nanos / 1000));
+  }
 
   @Override
-  public void removeEventListener(Consumer<EventData> listener) {}
+  public List<LatencyStatistics> getLatencyStatistics() {
+    List<LatencyStatistics> ret = new ArrayList<>(latencies.size());
+    latencies.forEach(
+        (key, histogram) -> {
+          Histogram copy = histogram.copy();
+          ret.add(
+              new LatencyStatistics(
+                  key.digitalTwin(),
+                  key.phase(),
+                  copy.getTotalCount(),
+                  copy.getMean(),
+                  copy.getValueAtPercentile(50),
+                  copy.getValueAtPercentile(99),
+                  copy.getMaxValue()));
+        });
+    return ret;
+  }
 
-  private void setupMessageListener() {
-    // This would depend on your k.LAB API for message listening
-    configuredScope.onMessage(this::handleKlabMessage, queues.toArray(new Message.Queue[0]));
+  @Override
+  public void addEventListener(Consumer<EventData> listener) {
+    addEventListener(listener, EventFilter.ALL);
   }
 
-  private final Set<Consumer<EventData>> eventListeners = ConcurrentHashMap.newKeySet();
-  private final ExecutorService eventExecutor = Executors.newCachedThreadPool();
+  /*
+  Each listener consumes the event buffer on its own thread, so a slow listener does not delay the
+  others. Listeners are identified by equality: pass the same instance to remove it.
+   */
+  @Override
+  public void addEventListener(Consumer<EventData> listener, EventFilter filter) {
+    var registration =
+        new ListenerRegistration(filter, event -> listener.accept(event.getEventData()));
+    var previous = listeners.put(listener, registration);
+    if (previous != null) {
+      eventBuffer.unsubscribe(previous.delivery());
+    }
+    eventBuffer.subscribe(
+        registration.delivery(),
+        event -> filter.accepts(event.message, event.source),
+        String.valueOf(listenerIds.incrementAndGet()));
+  }
+
+  @Override
+  public void removeEventListener(Consumer<EventData> listener) {
+    var registration = listeners.remove(listener);
+    if (registration != null) {
+      eventBuffer.unsubscribe(registration.delivery());
+    }
+  }
+
+  @Override
+  public List<EventListenerStatistics> getEventListenerStatistics() {
+    return eventBuffer.getStatistics();
+  }
+
+  /*
+  Listen to the messages of the user scope. Scopes offer no way to remove a listener, so once the
+  scope is replaced by a refresh its listener stops forwarding, and each message is relayed once.
+   */
+  private void setupMessageListener(Scope scope) {
+    scope.onMessage(
+        (channel, message) -> {
+          if (scope == configuredScope) {
+            handleKlabMessage(null, message);
+          }
+        },
+        queues.toArray(new Message.Queue[0]));
+  }
+
+  /*
+  A message as received from a scope. It is converted to EventData by the first listener whose
+  filter accepts it, so that messages nobody wants are never converted.
+   */
+  private final class KlabEvent {
+    private final Message message;
+    private final String source;
+    private volatile EventData eventData;
+
+    private KlabEvent(Message message, String source) {
+      this.message = message;
+      this.source = source;
+    }
+
+    private EventData getEventData() {
+      EventData ret = eventData;
+      if (ret == null) {
+        synchronized (this) {
+          if (eventData == null) {
+            eventData = convertMessageToEventData(message, source);
+          }
+          ret = eventData;
+        }
+      }
+      return ret;
+    }
+  }
+
+  private record ListenerRegistration(EventFilter filter, Consumer<KlabEvent> delivery) {}
+
+  private volatile EventRingBuffer<KlabEvent> eventBuffer;
+  private final Map<Consumer<EventData>, ListenerRegistration> listeners =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger listenerIds = new AtomicInteger();
 
   /*
   Make the Auth Call based on the Certificate,
@@ -162,9 +880,136 @@ public class KlabControllerService extends AbstractControllerService
 
   @OnEnabled
   public void onEnabled(final ConfigurationContext context) {
-    this.engine = new EngineImpl(this::updateEngineStatus, this::updateServiceStatus);
-    this.scopeMap = new ConcurrentHashMap<>();
+    this.engine = createEngine();
+    this.engineBooted = false;
+    this.scopePool =
+        new ScopePool(
+            context.getProperty(SCOPE_POOL_SIZE).asInteger(),
+            context.getProperty(SCOPE_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS),
+            this::closeScope);
+    long sweepMillis =
+        Math.max(
+            1000,
+            Math.min(
+                60_000,
+                context.getProperty(SCOPE_IDLE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS) / 2));
+    this.backgroundExecutor =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread thread = new Thread(r, "klab-controller-background");
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.backgroundExecutor.scheduleWithFixedDelay(
+        scopePool::evictIdle, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
     this.certificatePath = context.getProperty(CERTIFICATE_PROPERTY).getValue();
+    this.authenticationRefreshNanos =
+        context.getProperty(AUTHENTICATION_REFRESH_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+    this.observableCache =
+        new ExpiringLruCache<>(
+            context.getProperty(OBSERVABLE_CACHE_SIZE).asInteger(),
+            context.getProperty(OBSERVABLE_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS));
+
+    this.concurrencyLimiters.clear();
+    this.adaptiveConcurrency =
+        CONCURRENCY_ADAPTIVE.getValue().equals(context.getProperty(CONCURRENCY_LIMIT).getValue());
+    if (this.adaptiveConcurrency) {
+      this.initialConcurrency = context.getProperty(INITIAL_CONCURRENCY).asInteger();
+      this.maxConcurrency = context.getProperty(MAX_CONCURRENCY).asInteger();
+      this.targetSubmissionLatencyNanos =
+          context.getProperty(TARGET_SUBMISSION_LATENCY).asTimePeriod(TimeUnit.NANOSECONDS);
+      this.submissionPermitTimeoutNanos =
+          context.getProperty(SUBMISSION_PERMIT_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+    }
+    this.submissionTimeoutNanos =
+        context.getProperty(SUBMISSION_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+    this.circuitBreakers.clear();
+    this.circuitBreaking = context.getProperty(CIRCUIT_BREAKER).asBoolean();
+    if (this.circuitBreaking) {
+      this.circuitBreakerWindow = context.getProperty(CIRCUIT_BREAKER_WINDOW).asInteger();
+      this.circuitBreakerFailurePercentage =
+          context.getProperty(CIRCUIT_BREAKER_FAILURE_PERCENTAGE).asInteger();
+      this.circuitBreakerOpenNanos =
+          context.getProperty(CIRCUIT_BREAKER_OPEN_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+    }
+
+    this.eventBuffer =
+        new EventRingBuffer<>(
+            context.getProperty(EVENT_BUFFER_SIZE).asInteger(),
+            EventRingBuffer.OverflowPolicy.valueOf(
+                context
+                    .getProperty(EVENT_OVERFLOW_POLICY)
+                    .getValue()
+                    .replace('-', '_')
+                    .toUpperCase(Locale.ROOT)),
+            "klab-event-listener-",
+            e -> getLogger().error("Error notifying event listener", e));
+
+    this.warmUpUrls =
+        context.getProperty(WARM_UP_DT_URLS).isSet()
+            ? Arrays.stream(context.getProperty(WARM_UP_DT_URLS).getValue().split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList()
+            : List.of();
+    this.readiness = Readiness.STARTING;
+    long enabled = generation.incrementAndGet();
+    this.backgroundExecutor.execute(() -> warmUp(enabled));
+  }
+
+  /*
+  Boot, authenticate and connect the warm-up DTs off the enabling thread. A DT that cannot be
+  connected is only logged, as it will be retried on first use; a failed authentication leaves the
+  service not ready and is retried later. Nothing is published once the service has been disabled
+  since the enable that started it.
+   */
+  private void warmUp(long enabled) {
+    try {
+      authenticatedUserScope();
+    } catch (Exception e) {
+      if (enabled != generation.get()) {
+        return;
+      }
+      getLogger()
+          .error("k.LAB authentication failed, retrying in {} seconds", WARM_UP_RETRY_SECONDS, e);
+      this.readiness = Readiness.FAILED;
+      this.backgroundExecutor.schedule(
+          () -> warmUp(enabled), WARM_UP_RETRY_SECONDS, TimeUnit.SECONDS);
+      return;
+    }
+    for (String dtURL : warmUpUrls) {
+      if (enabled != generation.get()) {
+        return;
+      }
+      try {
+        if (getContextScope(dtURL) == null) {
+          getLogger().warn("Unable to connect to warm-up digital twin {}", dtURL);
+        }
+      } catch (Exception e) {
+        getLogger().warn("Unable to connect to warm-up digital twin {}", dtURL, e);
+      }
+    }
+    if (enabled != generation.get()) {
+      return;
+    }
+    this.readiness = Readiness.READY;
+    getLogger()
+        .info(
+            "k.LAB controller ready, {} digital twins connected",
+            scopePool.getStatistics().getSize());
+  }
+
+  /**
+   * The engine used to authenticate and to connect digital twins. Tests override this to run the
+   * processors against an in-process runtime instead of the k.LAB services.
+   */
+  protected Engine createEngine() {
+    return new EngineImpl(this::updateEngineStatus, this::updateServiceStatus);
+  }
+
+  @Override
+  public Readiness getReadiness() {
+    return readiness;
   }
 
   private UserScope authenticateUserScope() throws URISyntaxException, InitializationException {
@@ -203,46 +1048,87 @@ public class KlabControllerService extends AbstractControllerService
 
   @OnDisabled
   public void shutdown() {
-    scopeMap.clear();
-    eventListeners.clear();
-    eventExecutor.shutdown();
+    generation.incrementAndGet();
+    backgroundExecutor.shutdownNow();
     try {
-      if (!eventExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-        eventExecutor.shutdownNow();
+      // a warm-up blocked in a remote call is not interrupted, so wait for it to give up
+      if (!backgroundExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        getLogger().warn("k.LAB controller warm-up still running after being disabled");
       }
     } catch (InterruptedException e) {
-      eventExecutor.shutdownNow();
       Thread.currentThread().interrupt();
     }
+    readiness = Readiness.STARTING;
+    synchronized (authenticationLock) {
+      this.userScope = null;
+      this.configuredScope = null;
+    }
+    getLogger().info("Digital twin scopes: {}", scopePool.getStatistics());
+    scopePool.clear();
+    getLogger().info("Observable cache: {}", observableCache.getStatistics());
+    observableCache.invalidateAll();
+    getLogger()
+        .info(
+            "Observation submissions coalesced with one in flight: {}",
+            coalescedSubmissions.sumThenReset());
+    submissions.clear();
+    concurrencyLimiters.forEach(
+        (dtURL, limiter) -> getLogger().info("Concurrency of {}: {}", dtURL, limiter));
+    concurrencyLimiters.clear();
+    circuitBreakers.forEach(
+        (dtURL, breaker) -> getLogger().info("Circuit breaker of {}: {}", dtURL, breaker));
+    circuitBreakers.clear();
+    for (LatencyStatistics statistics : getLatencyStatistics()) {
+      getLogger().info("Latency of {}", statistics);
+    }
+    latencies.clear();
+    for (EventListenerStatistics statistics : eventBuffer.getStatistics()) {
+      getLogger().info("Event listener {}", statistics);
+    }
+    eventBuffer.close();
+    listeners.clear();
   }
 
-  private void handleKlabMessage(Channel scope, Message message) {
+  /*
+  Called by the scope that received the message; the source is the URL of its DT, or null for the
+  user scope.
+   */
+  private void handleKlabMessage(String source, Message message) {
 
-    // Convert k.LAB message to EventData
-    EventData eventData = convertMessageToEventData(message);
+    // Messages no listener wants are dropped before any conversion or buffering
+    boolean wanted = false;
+    for (ListenerRegistration registration : listeners.values()) {
+      if (registration.filter().accepts(message, source)) {
+        wanted = true;
+        break;
+      }
+    }
+    if (!wanted) {
+      return;
+    }
 
-    // Notify all registered listeners asynchronously
-    eventListeners.forEach(
-        listener ->
-            eventExecutor.submit(
-                () -> {
-                  try {
-                    listener.accept(eventData);
-                  } catch (Exception e) {
-                    getLogger().error("Error notifying event listener", e);
-                  }
-                }));
+    // Hand over to the listener threads; with a full buffer the overflow policy applies
+    if (!eventBuffer.publish(new KlabEvent(message, source))) {
+      getLogger().debug("Event buffer full, k.LAB message dropped");
+    }
   }
 
-  private EventData convertMessageToEventData(Message message) {
+  static EventData convertMessageToEventData(Message message, String source) {
 
     Map<String, String> attributes = new HashMap<>();
+    if (source != null) {
+      attributes.put("message.source", source);
+    }
     attributes.put("message.type", message.getMessageType().toString());
     attributes.put("message.class", message.getMessageClass().toString());
     attributes.put("message.queue", message.getQueue().toString());
     attributes.put("message.timestamp", String.valueOf(message.getTimestamp()));
     // Add other relevant attributes
 
-    return new EventData(message.getPayload(message.getMessageType().payloadClass), attributes);
+    // The payload is only deserialized, and serialized to JSON, if a listener asks for it
+    return new EventData(
+        () -> message.getPayload(message.getMessageType().payloadClass),
+        Utils.Json::asString,
+        attributes);
   }
 }
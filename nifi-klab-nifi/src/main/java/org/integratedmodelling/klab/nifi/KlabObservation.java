@@ -1,42 +1,41 @@
 package org.integratedmodelling.klab.nifi;
 
 
-import com.google.gson.*;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.integratedmodelling.common.utils.Utils;
-import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
-import org.integratedmodelling.klab.api.geometry.impl.GeometryImpl;
-import org.integratedmodelling.klab.api.knowledge.Observable;
-import org.integratedmodelling.klab.api.knowledge.observation.Observation;
-import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
-import org.integratedmodelling.klab.api.knowledge.observation.scale.time.Time;
-import org.integratedmodelling.klab.api.scope.ContextScope;
-import org.integratedmodelling.klab.api.scope.UserScope;
-import org.integratedmodelling.klab.api.services.Reasoner;
-import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.integratedmodelling.klab.nifi.utils.KlabAttributes;
+import org.integratedmodelling.klab.nifi.utils.ObservationSubmitter;
+import org.integratedmodelling.klab.nifi.utils.ObservationSubmitter.Submission;
+import org.integratedmodelling.klab.nifi.utils.PhaseTimings;
+import org.integratedmodelling.klab.nifi.utils.RetryPolicy;
+import org.integratedmodelling.klab.nifi.utils.SubmissionCache;
 
 @Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins"})
+@TriggerWhenEmpty // pending asynchronous submissions must be routed even when no input is queued
 @InputRequirement(
     InputRequirement.Requirement.INPUT_REQUIRED) // This shouldn't be the first processor
 @CapabilityDescription(
@@ -44,16 +43,35 @@ import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
         + "Also is responsible for some pre validation steps"
         + "Observation processor for the digital twin. Submitted unresolved observations "
         + "will be output as resolved; submitted resolved observations will be output as accepted, "
-        + "or their already present observation will be output instead.")
+        + "or their already present observation will be output instead. "
+        + "In asynchronous mode, a window of submitted observations is kept in flight and routed "
+        + "as soon as the digital twin resolves them.")
 @WritesAttributes({
   @WritesAttribute(
       attribute = "observation.id",
       description = "Writes the Id of the Observation made"),
   @WritesAttribute(
       attribute = "observation.type",
-      description = "Writes the type of the Observation made")
+      description = "Writes the type of the Observation made"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_REQUEST_FINGERPRINT,
+      description = "The fingerprint of the request the observation was resolved for"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_DEDUPLICATED,
+      description = "True when the observation was resolved for an earlier identical request"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_RETRY_COUNT,
+      description = "The number of retries made of a request routed to retry"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_RETRY_AFTER,
+      description =
+          "The time in milliseconds since the epoch before which a request routed to retry is not"
+              + " submitted again"),
+  @WritesAttribute(
+      attribute = "klab.timing.<phase>.micros",
+      description = "The time spent in each processing phase, if timing attributes are enabled")
 })
-public class KlabObservation extends AbstractProcessor {
+public class KlabObservation extends AbstractSessionFactoryProcessor {
 
   public static final PropertyDescriptor KLAB_CONTROLLER_SERVICE =
       new PropertyDescriptor.Builder()
@@ -64,6 +82,59 @@ public class KlabObservation extends AbstractProcessor {
           .identifiesControllerService(KlabController.class)
           .build();
 
+  public static final AllowableValue SUBMISSION_SYNCHRONOUS =
+      new AllowableValue(
+          "synchronous",
+          "Synchronous",
+          "Wait for the digital twin to resolve each observation before routing its FlowFile.");
+
+  public static final AllowableValue SUBMISSION_ASYNCHRONOUS =
+      new AllowableValue(
+          "asynchronous",
+          "Asynchronous",
+          "Submit observations without waiting; resolved observations are routed by later"
+              + " triggers.");
+
+  public static final PropertyDescriptor SUBMISSION_MODE =
+      new PropertyDescriptor.Builder()
+          .name("submission-mode")
+          .displayName("Submission Mode")
+          .description(
+              "Whether a trigger waits for the resolution of the observation it submits, or keeps"
+                  + " it pending and routes it once the digital twin has resolved it.")
+          .required(true)
+          .allowableValues(SUBMISSION_SYNCHRONOUS, SUBMISSION_ASYNCHRONOUS)
+          .defaultValue(SUBMISSION_SYNCHRONOUS.getValue())
+          .build();
+
+  public static final PropertyDescriptor MAX_IN_FLIGHT =
+      new PropertyDescriptor.Builder()
+          .name("max-in-flight")
+          .displayName("Maximum In-Flight Observations")
+          .description(
+              "The maximum number of submitted observations awaiting resolution. No FlowFiles are"
+                  + " pulled while the window is full. The requests awaiting resolution are held"
+                  + " by the processor and return to the input queue if it is stopped or NiFi is"
+                  + " restarted, to be submitted again.")
+          .required(true)
+          .defaultValue("100")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(SUBMISSION_MODE, SUBMISSION_ASYNCHRONOUS)
+          .build();
+
+  public static final PropertyDescriptor BATCH_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("batch-size")
+          .displayName("Batch Size")
+          .description(
+              "The maximum number of FlowFiles pulled in a single trigger. All the observations in"
+                  + " a batch are submitted before waiting on any of them, and the session is"
+                  + " committed once for the whole batch.")
+          .required(true)
+          .defaultValue("1")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
   public static final Relationship REL_SUCCESS =
       new Relationship.Builder()
           .name("success")
@@ -76,16 +147,57 @@ public class KlabObservation extends AbstractProcessor {
           .description("Observation Resolution Failed")
           .build();
 
+  public static final Relationship REL_RETRY =
+      new Relationship.Builder()
+          .name("retry")
+          .description(
+              "Observation requests that failed for a transient reason and can be submitted again,"
+                  + " penalized and with the klab.retry.* attributes set; usually connected back"
+                  + " to this processor")
+          .build();
+
+  public static final Relationship REL_UNAVAILABLE =
+      new Relationship.Builder()
+          .name("unavailable")
+          .description(
+              "Observation requests for a digital twin that is failing, routed without contacting"
+                  + " it while its circuit breaker in the controller service is open")
+          .build();
+
   private List<PropertyDescriptor> descriptors;
   private Set<Relationship> relationships;
   private volatile KlabController klabController;
-  private volatile ContextScope contextScope;
+  private volatile ObservationSubmitter submitter;
   private volatile boolean isRunning = false;
 
+  /*
+  Observations submitted in asynchronous mode. Their FlowFiles are migrated to a session of their
+  own until resolved, as NiFi's binning processors do, so that the result is still a child of the
+  request and the requests go back to the input queue if the processor stops before they resolve.
+  Sessions are not thread-safe, so the pending session is only used holding its lock.
+   */
+  private final Queue<Submission> pendingObservations = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final Object pendingLock = new Object();
+  private ProcessSession pendingSession;
+
   @Override
   protected void init(final ProcessorInitializationContext context) {
-    descriptors = List.of(KLAB_CONTROLLER_SERVICE);
-    relationships = Set.of(REL_SUCCESS, REL_FAILURE);
+    descriptors =
+        List.of(
+            KLAB_CONTROLLER_SERVICE,
+            BATCH_SIZE,
+            SUBMISSION_MODE,
+            MAX_IN_FLIGHT,
+            SubmissionCache.DEDUPLICATION,
+            SubmissionCache.DEDUPLICATION_TTL,
+            SubmissionCache.DEDUPLICATION_CACHE_SIZE,
+            SubmissionCache.DISTRIBUTED_CACHE,
+            RetryPolicy.MAX_ATTEMPTS,
+            RetryPolicy.INITIAL_BACKOFF,
+            RetryPolicy.MAX_BACKOFF,
+            PhaseTimings.TIMING_ATTRIBUTES);
+    relationships = Set.of(REL_SUCCESS, REL_FAILURE, REL_RETRY, REL_UNAVAILABLE);
   }
 
   @Override
@@ -105,108 +217,136 @@ public class KlabObservation extends AbstractProcessor {
         context
             .getProperty(KLAB_CONTROLLER_SERVICE)
             .asControllerService(KlabController.class); // Get the ContextScope from the controller
+    submitter =
+        new ObservationSubmitter(
+            context,
+            klabController,
+            getLogger(),
+            REL_SUCCESS,
+            REL_FAILURE,
+            REL_RETRY,
+            REL_UNAVAILABLE);
+  }
+
+  /* Requests still awaiting resolution are rolled back to the input queue, to be submitted again */
+  @OnStopped
+  public void onStopped() {
+    isRunning = false;
+    synchronized (pendingLock) {
+      if (!pendingObservations.isEmpty()) {
+        getLogger()
+            .warn(
+                "Returning {} observation requests still awaiting resolution to the input queue",
+                pendingObservations.size());
+      }
+      pendingObservations.clear();
+      inFlight.set(0);
+      if (pendingSession != null) {
+        pendingSession.rollback();
+        pendingSession = null;
+      }
+    }
   }
 
+  /* As AbstractProcessor does, with the session factory at hand to hold pending requests */
   @Override
-  public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-    FlowFile flowfile =
-        session.get(); // This is needed, since an input is required for this processor
-    if (flowfile == null) {
-      getLogger()
-          .error(
-              "Incoming flowfile to the processor is null. A valid observation request was expected.");
-      return;
+  public void onTrigger(ProcessContext context, ProcessSessionFactory sessionFactory)
+      throws ProcessException {
+    ProcessSession session = sessionFactory.createSession();
+    try {
+      onTrigger(context, session, sessionFactory);
+      session.commitAsync();
+    } catch (Throwable t) {
+      session.rollback(true);
+      throw t;
     }
+  }
 
-    final GsonBuilder builder = new GsonBuilder();
-    AtomicReference<KlabObservationNifiRequest> req = new AtomicReference<>();
+  private void onTrigger(
+      ProcessContext context, ProcessSession session, ProcessSessionFactory sessionFactory) {
+    final boolean asynchronous =
+        SUBMISSION_ASYNCHRONOUS.getValue().equals(context.getProperty(SUBMISSION_MODE).getValue());
 
-    Gson gson = builder.create(); // Read JSON directly from FlowFile input stream
-    session.read(
-        flowfile,
-        in -> {
-          try (InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-            req.set(gson.fromJson(reader, KlabObservationNifiRequest.class));
-            getLogger().info("Hin");
+    int harvested = 0;
+    int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+    if (asynchronous) {
+      harvested = harvestResolvedObservations(session);
+      int window = context.getProperty(MAX_IN_FLIGHT).asInteger() - inFlight.get();
+      if (window <= 0) {
+        getLogger().debug("In-flight window is full, not pulling new observation requests");
+        if (harvested == 0) {
+          context.yield();
+        }
+        return;
+      }
+      batchSize = Math.min(batchSize, window);
+    }
 
-          } catch (Exception e) {
-            getLogger().error("Error reading JSON", e);
-          }
-        });
+    if (klabController.getReadiness() != KlabController.Readiness.READY) {
+      getLogger().debug("k.LAB controller not ready, yielding");
+      context.yield();
+      return;
+    }
 
-    getLogger().info("Payload parsing done...");
+    List<FlowFile> flowfiles = session.get(batchSize);
+    if (flowfiles.isEmpty()) {
+      // Scheduled without input to route pending observations; nothing else to do
+      if (harvested == 0) {
+        context.yield();
+      }
+      return;
+    }
 
-    String dtUrl = req.get().getDigitalTwin();
-    getLogger().info("Connecting to DT " + dtUrl);
+    if (!this.isRunning) {
+      context.yield();
+      session.transfer(flowfiles, REL_FAILURE);
+      return;
+    }
 
-    if (klabController.containsDT(dtUrl)) {
-      this.contextScope = (ContextScope) klabController.getScope(ContextScope.class);
+    List<Submission> submissions = submitter.submit(session, flowfiles, UnaryOperator.identity());
+    if (asynchronous) {
+      hold(session, sessionFactory, submissions);
     } else {
-      var userScope = klabController.createScope(dtUrl);
-      this.contextScope = ((UserScope)userScope).connect(Utils.URLs.newURL(dtUrl));
+      submissions.forEach(submission -> submitter.transfer(session, submission));
     }
+  }
 
-    if (!this.isRunning || this.contextScope == null) {
-      getLogger().error("Problems connecting to the DT");
-      context.yield();
+  /* Move the FlowFiles of asynchronous submissions to the pending session until they resolve */
+  private void hold(
+      ProcessSession session, ProcessSessionFactory sessionFactory, List<Submission> submissions) {
+    if (submissions.isEmpty()) {
       return;
     }
+    synchronized (pendingLock) {
+      if (pendingSession == null) {
+        pendingSession = sessionFactory.createSession();
+      }
+      session.migrate(pendingSession, submissions.stream().map(Submission::flowFile).toList());
+      pendingObservations.addAll(submissions);
+      inFlight.addAndGet(submissions.size());
+    }
+  }
 
-    // The Observable from the Semantics URN with the Reasoner Client
-    Observable observable =
-        contextScope
-            .getService(Reasoner.class)
-            .resolveObservable(req.get().getObservationSemantics());
-
-    Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
-
-    System.out.println(prettyGson.toJson(observable));
-    System.out.println("Observable Generated..");
-
-    var geometry =
-        GeometryImpl.builder()
-            .space()
-            .shape(req.get().getGeometry().getSpace().getShape())
-            .resolution(req.get().getGeometry().getSpace().getSgrid())
-            .projection(req.get().getGeometry().getSpace().getProj())
-            .build()
-            .time()
-            .between(
-                req.get().getGeometry().getTime().getTstart(),
-                req.get().getGeometry().getTime().getTend())
-            .resolution(Time.Resolution.Type.YEAR, req.get().getGeometry().getTime().getTscope())
-            .build();
-
-    ObservationImpl obs = DigitalTwin.createObservation(contextScope, observable);
-    obs.setGeometry(geometry.build());
-    obs.setName(req.get().getObservationName());
-    obs.setUrn(req.get().getObservationSemantics());
-    obs.setId(req.get().getObservationId()); // Unresolved Observation ID is -1
-    getLogger().warn("OBSERVATION ID = " + obs.getId());
-    getLogger().info("Observation Payload Generation done, submitting the Observation");
-
-    // Convert the object to a pretty-printed JSON string
-    System.out.println(prettyGson.toJson(obs));
-
-    AtomicReference<ObservationImpl> observationRef = new AtomicReference<>();
-    observationRef.set(obs);
-    Observation observation = observationRef.get();
-    try {
-      CompletableFuture<Observation> future = contextScope.submit(observation);
-      Observation resolvedObservation = future.get();
-      FlowFile successFlowFile = session.create();
-      Map<String, String> attributes = new HashMap<>();
-      attributes.put("observation.id", resolvedObservation.getId() + "");
-      // TODO make sure that the resolved observation is valid. E.g. id is not -1
-      attributes.put("observation.type", resolvedObservation.getType().toString());
-      successFlowFile = session.putAllAttributes(successFlowFile, attributes);
-      getLogger().info("Success Flowfile being sent to Success Relation..");
-      session.remove(flowfile);
-      session.transfer(successFlowFile, REL_SUCCESS);
-    } catch (Exception e) {
-      getLogger().error("Error in processing Observation: ", e);
-      getLogger().info("Routing Success Flowfile to Failure Rel");
-      session.transfer(flowfile, REL_FAILURE);
+  /*
+  Route every pending observation whose resolution has completed, moving its FlowFile back to the
+  session of this trigger.
+   */
+  private int harvestResolvedObservations(ProcessSession session) {
+    List<Submission> resolved = new ArrayList<>();
+    synchronized (pendingLock) {
+      for (Submission pending : pendingObservations) {
+        if (pending.future().isDone()) {
+          resolved.add(pending);
+        }
+      }
+      if (resolved.isEmpty()) {
+        return 0;
+      }
+      pendingObservations.removeAll(resolved);
+      inFlight.addAndGet(-resolved.size());
+      pendingSession.migrate(session, resolved.stream().map(Submission::flowFile).toList());
     }
+    resolved.forEach(submission -> submitter.transfer(session, submission));
+    return resolved.size();
   }
 }
@@ -0,0 +1,380 @@
+package org.integratedmodelling.klab.nifi;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.ObservationSubmitter;
+import org.integratedmodelling.klab.nifi.utils.PhaseTimings;
+import org.integratedmodelling.klab.nifi.utils.RequestFingerprint;
+
+@Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins", "Record"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription(
+    "Reads observation requests as records (e.g. CSV, Avro or JSON rows) and submits each of them"
+        + " to its digital twin, keeping a bounded number of submissions in flight. Each row must"
+        + " have the fields name, semantics and shape (WKT), and may have sgrid, proj, tstart,"
+        + " tend, tunit, tscope and digitalTwin, with the same meaning and defaults as the JSON"
+        + " observation request. One result record per row is written with the observation id,"
+        + " type and status.")
+@WritesAttributes({
+  @WritesAttribute(attribute = "record.count", description = "The number of result records"),
+  @WritesAttribute(
+      attribute = "klab.observations.resolved",
+      description = "The number of rows whose observation was resolved"),
+  @WritesAttribute(
+      attribute = "klab.observations.failed",
+      description = "The number of rows that could not be submitted or resolved"),
+  @WritesAttribute(attribute = "mime.type", description = "The MIME type of the record writer")
+})
+public class KlabObservationRecordProcessor extends AbstractProcessor {
+
+  public static final String STATUS_RESOLVED = "resolved";
+  public static final String STATUS_FAILED = "failed";
+
+  /** The schema of the result records. */
+  public static final RecordSchema RESULT_SCHEMA =
+      new SimpleRecordSchema(
+          List.of(
+              new RecordField("name", RecordFieldType.STRING.getDataType()),
+              new RecordField("semantics", RecordFieldType.STRING.getDataType()),
+              new RecordField("digitalTwin", RecordFieldType.STRING.getDataType()),
+              new RecordField("observationId", RecordFieldType.LONG.getDataType()),
+              new RecordField("observationType", RecordFieldType.STRING.getDataType()),
+              new RecordField("status", RecordFieldType.STRING.getDataType()),
+              new RecordField("error", RecordFieldType.STRING.getDataType())));
+
+  public static final PropertyDescriptor KLAB_CONTROLLER_SERVICE =
+      new PropertyDescriptor.Builder()
+          .name("klab-controller-service")
+          .displayName("k.LAB Controller Service")
+          .description("The k.LAB Controller Service providing the digital twin scopes")
+          .required(true)
+          .identifiesControllerService(KlabController.class)
+          .build();
+
+  public static final PropertyDescriptor RECORD_READER =
+      new PropertyDescriptor.Builder()
+          .name("record-reader")
+          .displayName("Record Reader")
+          .description("The Record Reader used to read the observation requests")
+          .required(true)
+          .identifiesControllerService(RecordReaderFactory.class)
+          .build();
+
+  public static final PropertyDescriptor RECORD_WRITER =
+      new PropertyDescriptor.Builder()
+          .name("record-writer")
+          .displayName("Record Writer")
+          .description("The Record Writer used to write the result records")
+          .required(true)
+          .identifiesControllerService(RecordSetWriterFactory.class)
+          .build();
+
+  public static final PropertyDescriptor DEFAULT_DT_URL =
+      new PropertyDescriptor.Builder()
+          .name("default-dt-url")
+          .displayName("Default Digital Twin URL")
+          .description("The digital twin observed by the rows that have no digitalTwin field")
+          .required(false)
+          .addValidator(StandardValidators.URL_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor MAX_CONCURRENT_SUBMISSIONS =
+      new PropertyDescriptor.Builder()
+          .name("max-concurrent-submissions")
+          .displayName("Maximum Concurrent Submissions")
+          .description(
+              "The maximum number of observations of a FlowFile awaiting resolution at the same"
+                  + " time. Reading the rows pauses while the limit is reached.")
+          .required(true)
+          .defaultValue("50")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final Relationship REL_SUCCESS =
+      new Relationship.Builder()
+          .name("success")
+          .description("The result records, one per row, whether resolved or failed")
+          .build();
+
+  public static final Relationship REL_ORIGINAL =
+      new Relationship.Builder()
+          .name("original")
+          .description("The original FlowFile, once all its rows have been processed")
+          .build();
+
+  public static final Relationship REL_FAILURE =
+      new Relationship.Builder()
+          .name("failure")
+          .description("FlowFiles whose records could not be read or whose results not written")
+          .build();
+
+  private List<PropertyDescriptor> descriptors;
+  private Set<Relationship> relationships;
+  private volatile KlabController klabController;
+
+  /* A submitted row, with the fields echoed in its result */
+  private record Submission(
+      String name,
+      String semantics,
+      String digitalTwin,
+      CompletableFuture<Observation> future,
+      String error) {}
+
+  @Override
+  protected void init(final ProcessorInitializationContext context) {
+    descriptors =
+        List.of(
+            KLAB_CONTROLLER_SERVICE,
+            RECORD_READER,
+            RECORD_WRITER,
+            DEFAULT_DT_URL,
+            MAX_CONCURRENT_SUBMISSIONS);
+    relationships = Set.of(REL_SUCCESS, REL_ORIGINAL, REL_FAILURE);
+  }
+
+  @Override
+  public Set<Relationship> getRelationships() {
+    return this.relationships;
+  }
+
+  @Override
+  public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return descriptors;
+  }
+
+  @OnScheduled
+  public void onScheduled(final ProcessContext context) {
+    klabController =
+        context.getProperty(KLAB_CONTROLLER_SERVICE).asControllerService(KlabController.class);
+  }
+
+  @Override
+  public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+    if (klabController.getReadiness() != KlabController.Readiness.READY) {
+      context.yield();
+      return;
+    }
+
+    FlowFile flowFile = session.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    final RecordReaderFactory readerFactory =
+        context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+    final RecordSetWriterFactory writerFactory =
+        context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+    final String defaultDtUrl = context.getProperty(DEFAULT_DT_URL).getValue();
+    final Semaphore permits =
+        new Semaphore(context.getProperty(MAX_CONCURRENT_SUBMISSIONS).asInteger());
+
+    // Rows are submitted while reading, so that resolution overlaps with parsing
+    List<Submission> submissions = new ArrayList<>();
+    Map<String, ContextScope> scopes = new HashMap<>();
+    try (InputStream in = session.read(flowFile);
+        RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+      Record record;
+      while ((record = reader.nextRecord()) != null) {
+        submissions.add(submit(record, defaultDtUrl, scopes, permits));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      session.rollback();
+      return;
+    } catch (Exception e) {
+      getLogger().error("Error reading observation records", e);
+      session.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+
+    int resolved = 0;
+    List<Record> results = new ArrayList<>(submissions.size());
+    for (Submission submission : submissions) {
+      Map<String, Object> values = new LinkedHashMap<>();
+      values.put("name", submission.name());
+      values.put("semantics", submission.semantics());
+      values.put("digitalTwin", submission.digitalTwin());
+      String error = submission.error();
+      if (submission.future() != null) {
+        try {
+          Observation observation = submission.future().get();
+          values.put("observationId", observation.getId());
+          values.put("observationType", String.valueOf(observation.getType()));
+          resolved++;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          error = "Interrupted while waiting for the resolution";
+        } catch (Exception e) {
+          error = String.valueOf(e.getCause() == null ? e : e.getCause());
+        }
+      }
+      values.put("status", error == null ? STATUS_RESOLVED : STATUS_FAILED);
+      values.put("error", error);
+      results.add(new MapRecord(RESULT_SCHEMA, values));
+    }
+
+    Map<String, String> attributes = new HashMap<>();
+    FlowFile resultFlowFile = session.create(flowFile);
+    try {
+      resultFlowFile =
+          session.write(
+              resultFlowFile,
+              out -> {
+                try {
+                  RecordSchema schema =
+                      writerFactory.getSchema(flowFile.getAttributes(), RESULT_SCHEMA);
+                  try (RecordSetWriter writer =
+                      writerFactory.createWriter(getLogger(), schema, out, flowFile)) {
+                    writer.beginRecordSet();
+                    for (Record result : results) {
+                      writer.write(result);
+                    }
+                    WriteResult writeResult = writer.finishRecordSet();
+                    attributes.putAll(writeResult.getAttributes());
+                    attributes.put("record.count", String.valueOf(writeResult.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                  }
+                } catch (Exception e) {
+                  throw new ProcessException("Failed to write the result records", e);
+                }
+              });
+      attributes.put("klab.observations.resolved", String.valueOf(resolved));
+      attributes.put("klab.observations.failed", String.valueOf(results.size() - resolved));
+      session.transfer(session.putAllAttributes(resultFlowFile, attributes), REL_SUCCESS);
+      session.transfer(flowFile, REL_ORIGINAL);
+    } catch (ProcessException e) {
+      getLogger().error("Error writing observation results", e);
+      session.remove(resultFlowFile);
+      session.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+
+    getLogger().info(resolved + " of " + results.size() + " observation records resolved");
+  }
+
+  /*
+  Parse a row and submit its observation, waiting for a permit first. Rows that cannot be parsed
+  or submitted are returned with their error and no future.
+   */
+  private Submission submit(
+      Record record, String defaultDtUrl, Map<String, ContextScope> scopes, Semaphore permits)
+      throws InterruptedException {
+    String name = record.getAsString("name");
+    String semantics = record.getAsString("semantics");
+    String digitalTwin = record.getAsString("digitalTwin");
+    if (digitalTwin == null) {
+      digitalTwin = defaultDtUrl;
+    }
+
+    KlabObservationNifiRequest request;
+    ContextScope scope;
+    Observation observation;
+    try {
+      request = toRequest(record, digitalTwin);
+      scope = scopes.get(digitalTwin);
+      if (scope == null) {
+        if (digitalTwin == null || (scope = klabController.getContextScope(digitalTwin)) == null) {
+          return new Submission(
+              name, semantics, digitalTwin, null, "Problems connecting to the DT " + digitalTwin);
+        }
+        scopes.put(digitalTwin, scope);
+      }
+      observation =
+          ObservationSubmitter.buildObservation(klabController, scope, request, new PhaseTimings());
+    } catch (Exception e) {
+      return new Submission(name, semantics, digitalTwin, null, e.getMessage());
+    }
+
+    permits.acquire();
+    try {
+      // Identical rows in flight, in this or other FlowFiles, share a single submission
+      CompletableFuture<Observation> future =
+          klabController.submitObservation(
+              digitalTwin, RequestFingerprint.of(request), scope, observation);
+      future.whenComplete((resolved, error) -> permits.release());
+      return new Submission(name, semantics, digitalTwin, future, null);
+    } catch (RuntimeException e) {
+      permits.release();
+      return new Submission(name, semantics, digitalTwin, null, e.getMessage());
+    }
+  }
+
+  private static KlabObservationNifiRequest toRequest(Record record, String digitalTwin)
+      throws KlabNifiException {
+    String shape = record.getAsString("shape");
+    if (shape == null) {
+      throw new KlabNifiException("Submitted Observation must have a shape");
+    }
+    var space = new KlabObservationNifiRequest.Geometry.Space.Builder().setShape(shape);
+    if (record.getAsString("sgrid") != null) {
+      space.setGrid(record.getAsString("sgrid"));
+    }
+    if (record.getAsString("proj") != null) {
+      space.setProj(record.getAsString("proj"));
+    }
+
+    Long tstart = record.getAsLong("tstart");
+    Long tend = record.getAsLong("tend");
+    var time =
+        new KlabObservationNifiRequest.Geometry.Time.Builder()
+            .setTime(tstart == null ? 0 : tstart, tend == null ? 0 : tend);
+    if (record.getAsString("tunit") != null) {
+      time.setTunit(record.getAsString("tunit"));
+    }
+    if (record.getAsInt("tscope") != null) {
+      time.setTscope(record.getAsInt("tscope"));
+    }
+
+    var request =
+        new KlabObservationNifiRequest.Builder()
+            .setGeometry(
+                new KlabObservationNifiRequest.Geometry.Builder()
+                    .setSpace(space.build())
+                    .setTime(time.build())
+                    .build())
+            .setObservationName(record.getAsString("name"))
+            .setObservationSemantics(record.getAsString("semantics"));
+    if (digitalTwin != null) {
+      request.setDigitalTwin(digitalTwin);
+    }
+    return request.build();
+  }
+}
@@ -2,15 +2,8 @@ package org.integratedmodelling.klab.nifi;
 
 import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_UNRESOLVED_OBS_ID;
 
-import com.google.gson.*;
-import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
@@ -25,17 +18,12 @@ import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.integratedmodelling.common.utils.Utils;
-import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
-import org.integratedmodelling.klab.api.geometry.impl.GeometryImpl;
-import org.integratedmodelling.klab.api.knowledge.Observable;
-import org.integratedmodelling.klab.api.knowledge.observation.Observation;
-import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
-import org.integratedmodelling.klab.api.knowledge.observation.scale.time.Time;
-import org.integratedmodelling.klab.api.scope.ContextScope;
-import org.integratedmodelling.klab.api.scope.UserScope;
-import org.integratedmodelling.klab.api.services.Reasoner;
-import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.integratedmodelling.klab.nifi.utils.KlabAttributes;
+import org.integratedmodelling.klab.nifi.utils.ObservationSubmitter;
+import org.integratedmodelling.klab.nifi.utils.PhaseTimings;
+import org.integratedmodelling.klab.nifi.utils.RetryPolicy;
+import org.integratedmodelling.klab.nifi.utils.SubmissionCache;
 
 @Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins"})
 @InputRequirement(
@@ -53,7 +41,24 @@ import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
       description = "Writes the Id of the Observation made"),
   @WritesAttribute(
       attribute = "observation.type",
-      description = "Writes the type of the Observation made")
+      description = "Writes the type of the Observation made"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_REQUEST_FINGERPRINT,
+      description = "The fingerprint of the request the observation was resolved for"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_DEDUPLICATED,
+      description = "True when the observation was resolved for an earlier identical request"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_RETRY_COUNT,
+      description = "The number of retries made of a request routed to retry"),
+  @WritesAttribute(
+      attribute = KlabAttributes.KLAB_RETRY_AFTER,
+      description =
+          "The time in milliseconds since the epoch before which a request routed to retry is not"
+              + " submitted again"),
+  @WritesAttribute(
+      attribute = "klab.timing.<phase>.micros",
+      description = "The time spent in each processing phase, if timing attributes are enabled")
 })
 public class KlabObservationWithDT extends AbstractProcessor {
 
@@ -67,6 +72,19 @@ public class KlabObservationWithDT extends AbstractProcessor {
           .identifiesControllerService(KlabController.class)
           .build();
 
+  public static final PropertyDescriptor BATCH_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("batch-size")
+          .displayName("Batch Size")
+          .description(
+              "The maximum number of FlowFiles pulled in a single trigger. All the observations in"
+                  + " a batch are submitted before waiting on any of them, and the session is"
+                  + " committed once for the whole batch.")
+          .required(true)
+          .defaultValue("1")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
   public static final Relationship REL_SUCCESS =
       new Relationship.Builder()
           .name("success")
@@ -79,16 +97,44 @@ public class KlabObservationWithDT extends AbstractProcessor {
           .description("Observation Resolution Failed")
           .build();
 
+  public static final Relationship REL_RETRY =
+      new Relationship.Builder()
+          .name("retry")
+          .description(
+              "Observation requests that failed for a transient reason and can be submitted again,"
+                  + " penalized and with the klab.retry.* attributes set; usually connected back"
+                  + " to this processor")
+          .build();
+
+  public static final Relationship REL_UNAVAILABLE =
+      new Relationship.Builder()
+          .name("unavailable")
+          .description(
+              "Observation requests for a digital twin that is failing, routed without contacting"
+                  + " it while its circuit breaker in the controller service is open")
+          .build();
+
   private List<PropertyDescriptor> descriptors;
   private Set<Relationship> relationships;
   private volatile KlabController klabController;
-  private volatile UserScope userScope;
+  private volatile ObservationSubmitter submitter;
   private volatile boolean isRunning = false;
 
   @Override
   protected void init(final ProcessorInitializationContext context) {
-    descriptors = List.of(KLAB_CONTROLLER_SERVICE);
-    relationships = Set.of(REL_SUCCESS, REL_FAILURE);
+    descriptors =
+        List.of(
+            KLAB_CONTROLLER_SERVICE,
+            BATCH_SIZE,
+            SubmissionCache.DEDUPLICATION,
+            SubmissionCache.DEDUPLICATION_TTL,
+            SubmissionCache.DEDUPLICATION_CACHE_SIZE,
+            SubmissionCache.DISTRIBUTED_CACHE,
+            RetryPolicy.MAX_ATTEMPTS,
+            RetryPolicy.INITIAL_BACKOFF,
+            RetryPolicy.MAX_BACKOFF,
+            PhaseTimings.TIMING_ATTRIBUTES);
+    relationships = Set.of(REL_SUCCESS, REL_FAILURE, REL_RETRY, REL_UNAVAILABLE);
   }
 
   @Override
@@ -106,120 +152,40 @@ public class KlabObservationWithDT extends AbstractProcessor {
     isRunning = true;
     klabController =
         context.getProperty(KLAB_CONTROLLER_SERVICE).asControllerService(KlabController.class);
-    userScope = (UserScope) klabController.getScope(UserScope.class);
-    if (userScope == null) {
-      getLogger()
-          .error("No UserScope available from the KlabController, Authentication failed possibly");
-    }
+    submitter =
+        new ObservationSubmitter(
+            context,
+            klabController,
+            getLogger(),
+            REL_SUCCESS,
+            REL_FAILURE,
+            REL_RETRY,
+            REL_UNAVAILABLE);
   }
 
   @Override
   public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
-    FlowFile flowfile = session.get();
-    if (flowfile == null) {
-      getLogger().error("Incoming flowfile to the processor is null :(");
-      return;
-    }
-
-    if (!isRunning || userScope == null) {
-      getLogger().error("Problems in Authenticating with the Certificate");
+    if (klabController.getReadiness() != KlabController.Readiness.READY) {
+      getLogger().debug("k.LAB controller not ready, yielding");
       context.yield();
-      session.transfer(flowfile, REL_FAILURE);
       return;
     }
 
-    final GsonBuilder builder = new GsonBuilder();
-    AtomicReference<KlabObservationNifiRequest> req = new AtomicReference<>();
-
-    Gson gson = builder.create(); // Read JSON directly from FlowFile input stream
-    session.read(
-        flowfile,
-        in -> {
-          try (InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-            req.set(gson.fromJson(reader, KlabObservationNifiRequest.class));
-
-          } catch (Exception e) {
-            getLogger().error("Error reading JSON", e);
-          }
-        });
-
-    getLogger().info("Payload parsing done...");
-
-    String dtURL = req.get().getDigitalTwin();
-    if (dtURL.isEmpty()) {
-      getLogger().error("The Flowfile doesn't have the DT URL");
-      session.transfer(flowfile, REL_FAILURE);
+    List<FlowFile> flowfiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+    if (flowfiles.isEmpty()) {
       return;
     }
 
-    ContextScope contextScope = (ContextScope) klabController.getScope(dtURL, ContextScope.class);
-    if (contextScope == null) {
-      getLogger().info("No ContextScope available from the KlabController for the DT " + dtURL);
-      contextScope = userScope.connect(Utils.URLs.newURL(dtURL));
-      if (contextScope == null) {
-        getLogger().error("Unable to connect to the Digital Twin " + dtURL);
-        session.transfer(flowfile, REL_FAILURE);
-        return;
-      }
-      klabController.addScope(
-          dtURL, contextScope); // Add the newly created ContextScope to the KlabController Map
-      getLogger().info("Fetched Context Scope successfully from DT: " + dtURL);
+    if (!isRunning) {
+      context.yield();
+      session.transfer(flowfiles, REL_FAILURE);
+      return;
     }
 
-    // The Observable from the Semantics URN with the Reasoner Client
-    Observable observable =
-        contextScope
-            .getService(Reasoner.class)
-            .resolveObservable(req.get().getObservationSemantics());
-
-    Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
-
-    System.out.println(prettyGson.toJson(observable));
-    System.out.println("Observable Generated..");
-
-    var geometry =
-        GeometryImpl.builder()
-            .space()
-            .shape(req.get().getGeometry().getSpace().getShape())
-            .resolution(req.get().getGeometry().getSpace().getSgrid())
-            .projection(req.get().getGeometry().getSpace().getProj())
-            .build()
-            .time()
-            .between(
-                req.get().getGeometry().getTime().getTstart(),
-                req.get().getGeometry().getTime().getTend())
-            .resolution(Time.Resolution.Type.YEAR, req.get().getGeometry().getTime().getTscope())
-            .build();
-
-    ObservationImpl obs = DigitalTwin.createObservation(contextScope, observable);
-    obs.setGeometry(geometry.build());
-    obs.setName(req.get().getObservationName());
-    obs.setUrn(req.get().getObservationSemantics());
-    obs.setId(KLAB_UNRESOLVED_OBS_ID); // Unresolved Observation ID is -1
-    getLogger().info("Observation Payload Generation done, submitting the Observation");
-
-    // Convert the object to a pretty-printed JSON string
-    System.out.println(prettyGson.toJson(obs));
-
-    AtomicReference<ObservationImpl> observationRef = new AtomicReference<>();
-    observationRef.set(obs);
-    Observation observation = observationRef.get();
-    try {
-      CompletableFuture<Observation> future = contextScope.submit(observation);
-      Observation resolvedObservation = future.get();
-      FlowFile successFlowFile = session.create();
-      Map<String, String> attributes = new HashMap<>();
-      attributes.put("observation.id", resolvedObservation.getId() + "");
-      attributes.put("observation.type", resolvedObservation.getType().toString());
-      successFlowFile = session.putAllAttributes(successFlowFile, attributes);
-      getLogger().info("Success Flowfile being sent to Success Relation..");
-      session.remove(flowfile);
-      session.transfer(successFlowFile, REL_SUCCESS);
-    } catch (Exception e) {
-      getLogger().error("Error in processing Observation: ", e);
-      getLogger().info("Routing Success Flowfile to Failure Rel");
-      session.transfer(flowfile, REL_FAILURE);
-    }
+    // Always submitted as unresolved, and fingerprinted as such
+    submitter
+        .submit(session, flowfiles, request -> request.withObservationId(KLAB_UNRESOLVED_OBS_ID))
+        .forEach(submission -> submitter.transfer(session, submission));
   }
 }
@@ -0,0 +1,156 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_TILE_COLUMN;
+import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_TILE_ROW;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.flowfile.attributes.FragmentAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequestCodec;
+import org.integratedmodelling.klab.nifi.utils.SpatialTiler;
+
+@Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins", "Split", "Tiles"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription(
+    "Splits the space of an observation request into a grid of tiles over the bounding box of its"
+        + " shape, emitting one observation request per tile. Tiles can be submitted"
+        + " concurrently by a KlabObservation processor with a batch size larger than one, and"
+        + " retried individually; the fragment attributes allow a downstream merge to put the"
+        + " results back together.")
+@WritesAttributes({
+  @WritesAttribute(
+      attribute = "fragment.identifier",
+      description = "The UUID of the original request, shared by all its tiles"),
+  @WritesAttribute(attribute = "fragment.index", description = "The index of the tile, from 0"),
+  @WritesAttribute(attribute = "fragment.count", description = "The number of tiles emitted"),
+  @WritesAttribute(
+      attribute = "segment.original.filename",
+      description = "The filename of the original request"),
+  @WritesAttribute(attribute = "klab.tile.column", description = "The column of the tile"),
+  @WritesAttribute(attribute = "klab.tile.row", description = "The row of the tile")
+})
+public class KlabSpatialTiler extends AbstractProcessor {
+
+  public static final PropertyDescriptor TILE_COLUMNS =
+      new PropertyDescriptor.Builder()
+          .name("tile-columns")
+          .displayName("Tile Columns")
+          .description("The number of tiles along the x axis of the bounding box of the shape")
+          .required(true)
+          .defaultValue("2")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor TILE_ROWS =
+      new PropertyDescriptor.Builder()
+          .name("tile-rows")
+          .displayName("Tile Rows")
+          .description("The number of tiles along the y axis of the bounding box of the shape")
+          .required(true)
+          .defaultValue("2")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final Relationship REL_TILES =
+      new Relationship.Builder()
+          .name("tiles")
+          .description("One observation request for each tile of the original request")
+          .build();
+
+  public static final Relationship REL_ORIGINAL =
+      new Relationship.Builder()
+          .name("original")
+          .description("The original observation request, once it has been tiled")
+          .build();
+
+  public static final Relationship REL_FAILURE =
+      new Relationship.Builder()
+          .name("failure")
+          .description("Requests that could not be parsed or tiled")
+          .build();
+
+  private List<PropertyDescriptor> descriptors;
+  private Set<Relationship> relationships;
+
+  @Override
+  protected void init(final ProcessorInitializationContext context) {
+    descriptors = List.of(TILE_COLUMNS, TILE_ROWS);
+    relationships = Set.of(REL_TILES, REL_ORIGINAL, REL_FAILURE);
+  }
+
+  @Override
+  public Set<Relationship> getRelationships() {
+    return this.relationships;
+  }
+
+  @Override
+  public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return descriptors;
+  }
+
+  @Override
+  public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+    FlowFile flowFile = session.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    List<SpatialTiler.Tile> tiles;
+    try (final InputStream in = session.read(flowFile)) {
+      KlabObservationNifiRequest request = KlabObservationNifiRequestCodec.read(in);
+      tiles =
+          SpatialTiler.tile(
+              request,
+              context.getProperty(TILE_COLUMNS).asInteger(),
+              context.getProperty(TILE_ROWS).asInteger());
+    } catch (IOException | KlabNifiException | RuntimeException e) {
+      getLogger().error("Error tiling observation request", e);
+      session.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+
+    String identifier = flowFile.getAttribute(CoreAttributes.UUID.key());
+    String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+    for (int i = 0; i < tiles.size(); i++) {
+      SpatialTiler.Tile tile = tiles.get(i);
+      FlowFile tileFlowFile = session.create(flowFile);
+      tileFlowFile =
+          session.write(
+              tileFlowFile, out -> KlabObservationNifiRequestCodec.write(tile.request(), out));
+
+      Map<String, String> attributes = new HashMap<>();
+      attributes.put(FragmentAttributes.FRAGMENT_ID.key(), identifier);
+      attributes.put(FragmentAttributes.FRAGMENT_INDEX.key(), String.valueOf(i));
+      attributes.put(FragmentAttributes.FRAGMENT_COUNT.key(), String.valueOf(tiles.size()));
+      attributes.put(FragmentAttributes.SEGMENT_ORIGINAL_FILENAME.key(), filename);
+      attributes.put(KLAB_TILE_COLUMN, String.valueOf(tile.column()));
+      attributes.put(KLAB_TILE_ROW, String.valueOf(tile.row()));
+      attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+      session.transfer(session.putAllAttributes(tileFlowFile, attributes), REL_TILES);
+    }
+
+    getLogger().debug("Observation request tiled into " + tiles.size() + " tiles");
+    session.transfer(flowFile, REL_ORIGINAL);
+  }
+}
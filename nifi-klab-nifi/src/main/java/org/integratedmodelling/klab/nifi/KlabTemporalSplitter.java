@@ -0,0 +1,147 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_TIME_END;
+import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_TIME_START;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.flowfile.attributes.FragmentAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequestCodec;
+import org.integratedmodelling.klab.nifi.utils.TemporalSplitter;
+
+@Tags({"k.LAB", "WEED", "AI", "Semantic Web", "Digital Twins", "Split", "Time"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription(
+    "Splits the time range of an observation request into one request per step of its temporal"
+        + " resolution (tscope units of tunit), so that a long range can be observed as many"
+        + " smaller observations submitted concurrently by a KlabObservation processor with a"
+        + " batch size larger than one. Each request is tagged with its time slice; the fragment"
+        + " attributes allow a downstream merge to put the results back together.")
+@WritesAttributes({
+  @WritesAttribute(
+      attribute = "fragment.identifier",
+      description = "The UUID of the original request, shared by all its slices"),
+  @WritesAttribute(attribute = "fragment.index", description = "The index of the slice, from 0"),
+  @WritesAttribute(attribute = "fragment.count", description = "The number of slices emitted"),
+  @WritesAttribute(
+      attribute = "segment.original.filename",
+      description = "The filename of the original request"),
+  @WritesAttribute(
+      attribute = "klab.time.start",
+      description = "The start of the time slice, in milliseconds since the epoch"),
+  @WritesAttribute(
+      attribute = "klab.time.end",
+      description = "The end of the time slice, in milliseconds since the epoch")
+})
+public class KlabTemporalSplitter extends AbstractProcessor {
+
+  public static final PropertyDescriptor MAX_STEPS =
+      new PropertyDescriptor.Builder()
+          .name("max-time-steps")
+          .displayName("Maximum Time Steps")
+          .description(
+              "The maximum number of slices a request may be split into. Requests whose time"
+                  + " range has more steps are routed to failure.")
+          .required(true)
+          .defaultValue("1000")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final Relationship REL_SLICES =
+      new Relationship.Builder()
+          .name("slices")
+          .description("One observation request for each time step of the original request")
+          .build();
+
+  public static final Relationship REL_ORIGINAL =
+      new Relationship.Builder()
+          .name("original")
+          .description("The original observation request, once it has been split")
+          .build();
+
+  public static final Relationship REL_FAILURE =
+      new Relationship.Builder()
+          .name("failure")
+          .description("Requests that could not be parsed or split")
+          .build();
+
+  private List<PropertyDescriptor> descriptors;
+  private Set<Relationship> relationships;
+
+  @Override
+  protected void init(final ProcessorInitializationContext context) {
+    descriptors = List.of(MAX_STEPS);
+    relationships = Set.of(REL_SLICES, REL_ORIGINAL, REL_FAILURE);
+  }
+
+  @Override
+  public Set<Relationship> getRelationships() {
+    return this.relationships;
+  }
+
+  @Override
+  public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return descriptors;
+  }
+
+  @Override
+  public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+    FlowFile flowFile = session.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    List<TemporalSplitter.Slice> slices;
+    try (final InputStream in = session.read(flowFile)) {
+      KlabObservationNifiRequest request = KlabObservationNifiRequestCodec.read(in);
+      slices = TemporalSplitter.split(request, context.getProperty(MAX_STEPS).asInteger());
+    } catch (IOException | KlabNifiException | RuntimeException e) {
+      getLogger().error("Error splitting observation request", e);
+      session.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+
+    String identifier = flowFile.getAttribute(CoreAttributes.UUID.key());
+    String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+    for (TemporalSplitter.Slice slice : slices) {
+      FlowFile sliceFlowFile = session.create(flowFile);
+      sliceFlowFile =
+          session.write(
+              sliceFlowFile, out -> KlabObservationNifiRequestCodec.write(slice.request(), out));
+
+      Map<String, String> attributes = new HashMap<>();
+      attributes.put(FragmentAttributes.FRAGMENT_ID.key(), identifier);
+      attributes.put(FragmentAttributes.FRAGMENT_INDEX.key(), String.valueOf(slice.index()));
+      attributes.put(FragmentAttributes.FRAGMENT_COUNT.key(), String.valueOf(slices.size()));
+      attributes.put(FragmentAttributes.SEGMENT_ORIGINAL_FILENAME.key(), filename);
+      attributes.put(KLAB_TIME_START, String.valueOf(slice.start()));
+      attributes.put(KLAB_TIME_END, String.valueOf(slice.end()));
+      attributes.put(CoreAttributes.MIME_TYPE.key(), "application/json");
+      session.transfer(session.putAllAttributes(sliceFlowFile, attributes), REL_SLICES);
+    }
+
+    getLogger().debug("Observation request split into " + slices.size() + " time slices");
+    session.transfer(flowFile, REL_ORIGINAL);
+  }
+}
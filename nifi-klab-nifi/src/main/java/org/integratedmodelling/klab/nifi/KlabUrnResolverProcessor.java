@@ -6,19 +6,32 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.apache.nifi.annotation.behavior.ReadsAttribute;
 import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.integratedmodelling.common.knowledge.ObservableImpl;
 import org.integratedmodelling.klab.api.knowledge.Observable;
 import org.integratedmodelling.klab.api.scope.ContextScope;
 import org.integratedmodelling.klab.api.services.Reasoner;
 import org.integratedmodelling.klab.api.services.ResourcesService;
+import org.integratedmodelling.klab.nifi.utils.ExpiringLruCache;
+import org.integratedmodelling.klab.nifi.utils.PhaseTimings;
 
 @ReadsAttributes({
   @ReadsAttribute(
@@ -28,6 +41,47 @@ import org.integratedmodelling.klab.api.services.ResourcesService;
 public class KlabUrnResolverProcessor extends AbstractProcessor {
   private volatile ContextScope contextScope;
   private volatile KlabController klabController;
+  private volatile Set<Lookup> lookups;
+  private volatile ExpiringLruCache<String, JsonElement> resolutions;
+  private volatile Gson gson;
+  private volatile boolean timingAttributes;
+
+  /** The remote lookups that can be performed for a URN, named after the output JSON field. */
+  enum Lookup {
+    OBSERVABLE("observable"),
+    CONCEPT("concept"),
+    RESOURCE("resource");
+
+    private final String field;
+
+    Lookup(String field) {
+      this.field = field;
+    }
+
+    static Lookup forName(String name) {
+      for (Lookup lookup : values()) {
+        if (lookup.field.equals(name.trim().toLowerCase(Locale.ROOT))) {
+          return lookup;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final Validator LOOKUP_LIST_VALIDATOR =
+      (subject, input, context) -> {
+        for (String name : input.split(",")) {
+          if (Lookup.forName(name) == null) {
+            return new ValidationResult.Builder()
+                .subject(subject)
+                .input(input)
+                .valid(false)
+                .explanation("'" + name.trim() + "' is not one of observable, concept, resource")
+                .build();
+          }
+        }
+        return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+      };
 
   public static final PropertyDescriptor KLAB_CONTROLLER_SERVICE =
       new PropertyDescriptor.Builder()
@@ -38,8 +92,61 @@ public class KlabUrnResolverProcessor extends AbstractProcessor {
           .identifiesControllerService(KlabController.class)
           .build();
 
+  public static final PropertyDescriptor RESOLUTION_MODE =
+      new PropertyDescriptor.Builder()
+          .name("resolution-mode")
+          .displayName("Resolution Mode")
+          .description(
+              "A comma-separated list of the lookups performed for each URN, among observable,"
+                  + " concept and resource. Each result is added to the output JSON under a field"
+                  + " of the same name.")
+          .required(true)
+          .defaultValue("observable")
+          .addValidator(LOOKUP_LIST_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor BATCH_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("batch-size")
+          .displayName("Batch Size")
+          .description(
+              "The maximum number of FlowFiles handled in a single trigger. Each distinct URN in a"
+                  + " batch is resolved only once.")
+          .required(true)
+          .defaultValue("100")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor CACHE_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("urn-cache-size")
+          .displayName("URN Cache Size")
+          .description("The maximum number of resolved URNs kept in memory across triggers.")
+          .required(true)
+          .defaultValue("1000")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor CACHE_TTL =
+      new PropertyDescriptor.Builder()
+          .name("urn-cache-ttl")
+          .displayName("URN Cache Expiration")
+          .description(
+              "How long a resolved URN is reused before it is resolved again. A value of 0 secs"
+                  + " keeps resolutions until they are evicted by size.")
+          .required(true)
+          .defaultValue("10 mins")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
   public static final List<PropertyDescriptor> PROPERTY_DESCRIPTORS =
-          List.of(KLAB_CONTROLLER_SERVICE);
+          List.of(
+              KLAB_CONTROLLER_SERVICE,
+              RESOLUTION_MODE,
+              BATCH_SIZE,
+              CACHE_SIZE,
+              CACHE_TTL,
+              PhaseTimings.TIMING_ATTRIBUTES);
 
   @Override
   public Set<Relationship> getRelationships() {
@@ -77,8 +184,25 @@ public class KlabUrnResolverProcessor extends AbstractProcessor {
     if (contextScope == null) {
       getLogger().error("No ContextScope available from the KlabController");
     }
+
+    Set<Lookup> configured = EnumSet.noneOf(Lookup.class);
+    for (String name : context.getProperty(RESOLUTION_MODE).getValue().split(",")) {
+      configured.add(Lookup.forName(name));
+    }
+    lookups = configured;
+    resolutions =
+        new ExpiringLruCache<>(
+            context.getProperty(CACHE_SIZE).asInteger(),
+            context.getProperty(CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS));
+
+    timingAttributes = context.getProperty(PhaseTimings.TIMING_ATTRIBUTES).asBoolean();
+
+    final GsonBuilder builder = new GsonBuilder();
+    builder.registerTypeAdapter(Observable.class, new ObservableTypeAdapter());
+    gson = builder.create();
   }
 
+
   class ObservableTypeAdapter implements JsonDeserializer<Observable> {
     @Override
     public Observable deserialize(
@@ -91,57 +215,136 @@ public class KlabUrnResolverProcessor extends AbstractProcessor {
 
   @Override
   public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-    String urn = null;
-    var flowFile = session.get();
+    if (klabController.getReadiness() != KlabController.Readiness.READY) {
+      getLogger().debug("k.LAB controller not ready, yielding");
+      context.yield();
+      return;
+    }
 
-    JsonObject jsonObject = null;
-    try (final InputStream in = session.read(flowFile);
-        final InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-      final JsonElement root = JsonParser.parseReader(reader);
+    List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+    if (flowFiles.isEmpty()) {
+      return;
+    }
 
-      if (root.isJsonObject()) {
-        jsonObject = root.getAsJsonObject();
-        if (jsonObject.has("urn")) {
-          final JsonElement element = jsonObject.get("urn");
-          urn = element.getAsString();
-        } else {
-          getLogger().warn("JSON key not found in FlowFile");
-        }
+    contextScope = (ContextScope) klabController.getScope(ContextScope.class);
+    if (contextScope == null) {
+      getLogger().error("No ContextScope available from the KlabController");
+      context.yield();
+      session.transfer(flowFiles, REL_FAILURE);
+      return;
+    }
+
+    Map<FlowFile, JsonObject> requests = new LinkedHashMap<>();
+    Map<FlowFile, PhaseTimings> timings = new HashMap<>();
+    for (FlowFile flowFile : flowFiles) {
+      PhaseTimings flowFileTimings = new PhaseTimings();
+      long start = PhaseTimings.start();
+      JsonObject jsonObject = readRequest(session, flowFile);
+      if (jsonObject == null) {
+        session.transfer(flowFile, REL_FAILURE);
+      } else {
+        flowFileTimings.record(PhaseTimings.Phase.PARSE, start);
+        requests.put(flowFile, jsonObject);
+        timings.put(flowFile, flowFileTimings);
       }
-    } catch (final IOException e) {
-      getLogger().error("Failed to read FlowFile content due to {}", new Object[] {e}, e);
     }
 
-    if (urn == null) {
-      // TODO thrown an exception
-      return;
+    // Resolve every distinct URN in the batch once, going remote only for what is not cached;
+    // the time is charged to the first FlowFile asking for the URN
+    Map<String, Map<Lookup, JsonElement>> resolved = new HashMap<>();
+    for (Map.Entry<FlowFile, JsonObject> request : requests.entrySet()) {
+      String urn = request.getValue().get("urn").getAsString();
+      if (!resolved.containsKey(urn)) {
+        long start = PhaseTimings.start();
+        resolved.put(urn, resolve(urn));
+        timings.get(request.getKey()).record(PhaseTimings.Phase.RESOLVE_URN, start);
+      }
     }
 
-    contextScope = (ContextScope) klabController.getScope(ContextScope.class);
-    var solved = contextScope.getService(ResourcesService.class).resolve(urn, contextScope);
-    var solved_reason = contextScope.getService(Reasoner.class).resolveConcept(urn);
-    var solved_observable = contextScope.getService(Reasoner.class).resolveObservable(urn);
+    for (Map.Entry<FlowFile, JsonObject> request : requests.entrySet()) {
+      FlowFile flowFile = request.getKey();
+      JsonObject jsonObject = request.getValue();
+      var solved = resolved.get(jsonObject.get("urn").getAsString());
+      if (solved == null) {
+        session.transfer(flowFile, REL_FAILURE);
+        continue;
+      }
+      solved.forEach((lookup, element) -> jsonObject.add(lookup.field, element));
+      PhaseTimings flowFileTimings = timings.get(flowFile);
+      long start = PhaseTimings.start();
+      flowFile =
+          session.write(
+              flowFile,
+              out -> {
+                try {
+                  out.write(jsonObject.toString().getBytes(StandardCharsets.UTF_8));
+                } catch (Exception e) {
+                  throw new ProcessException("Error writing content", e);
+                }
+              });
+      flowFileTimings.record(PhaseTimings.Phase.WRITE, start);
+      Map<String, String> attributes = timingAttributes ? new HashMap<>() : null;
+      flowFileTimings.report(session, klabController, null, attributes);
+      if (attributes != null) {
+        flowFile = session.putAllAttributes(flowFile, attributes);
+      }
+      session.transfer(flowFile, REL_SUCCESS);
+    }
+  }
 
-    getLogger().info("Solved Observable" + solved_observable.getUrn());
-    final GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(Observable.class, new ObservableTypeAdapter());
+  private JsonObject readRequest(ProcessSession session, FlowFile flowFile) {
+    try (final InputStream in = session.read(flowFile);
+        final InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      final JsonElement root = JsonParser.parseReader(reader);
+      if (root.isJsonObject()
+          && root.getAsJsonObject().has("urn")
+          && root.getAsJsonObject().get("urn").isJsonPrimitive()) {
+        return root.getAsJsonObject();
+      }
+      getLogger().warn("JSON key not found in FlowFile");
+    } catch (final IOException | JsonParseException e) {
+      getLogger().error("Failed to read FlowFile content due to {}", new Object[] {e}, e);
+    }
+    return null;
+  }
 
-    Gson gson = builder.create();
-    JsonObject finalJsonObject = jsonObject;
-    flowFile =
-        session.write(
-            flowFile,
-            out -> {
-              finalJsonObject.add("observable", gson.toJsonTree(solved_observable));
-              try {
-                out.write(finalJsonObject.getAsString().getBytes(StandardCharsets.UTF_8));
-                getLogger().info("Writing observable to the flowfile.");
-              } catch (Exception e) {
-                throw new ProcessException("Error writing content", e);
-              }
-            });
-
-    session.transfer(flowFile, REL_SUCCESS);
-    session.commit();
+  /*
+  Perform the configured lookups for a URN, each memoized separately. Returns null if any of them
+  fails, so that all the FlowFiles with this URN are routed to failure.
+   */
+  private Map<Lookup, JsonElement> resolve(String urn) {
+    Map<Lookup, JsonElement> ret = new LinkedHashMap<>();
+    List<Lookup> missing = new ArrayList<>();
+    for (Lookup lookup : lookups) {
+      JsonElement cached = resolutions.get(lookup.field + " " + urn);
+      if (cached == null) {
+        missing.add(lookup);
+      } else {
+        ret.put(lookup, cached);
+      }
+    }
+    try {
+      for (Lookup lookup : missing) {
+        Object solved =
+            switch (lookup) {
+              case OBSERVABLE -> klabController.resolveObservable(contextScope, urn);
+              case CONCEPT -> contextScope.getService(Reasoner.class).resolveConcept(urn);
+              case RESOURCE ->
+                  contextScope.getService(ResourcesService.class).resolve(urn, contextScope);
+            };
+        if (solved == null) {
+          getLogger().error("Unable to resolve the {} for URN {}", lookup.field, urn);
+          return null;
+        }
+        JsonElement element = gson.toJsonTree(solved);
+        resolutions.put(lookup.field + " " + urn, element);
+        ret.put(lookup, element);
+      }
+    } catch (Exception e) {
+      getLogger().error("Error resolving URN " + urn, e);
+      return null;
+    }
+    getLogger().debug("Resolved URN {}", urn);
+    return ret;
   }
 }
@@ -6,19 +6,27 @@ import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.integratedmodelling.common.utils.Utils;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.integratedmodelling.klab.api.Klab;
 import org.integratedmodelling.klab.api.scope.Scope;
 import org.integratedmodelling.klab.api.scope.UserScope;
@@ -33,12 +41,26 @@ import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Receive messages from the currently configured scope and relay them as output. Should be
- * configurable with queue/message filters and scope IDs.
+ * Receive messages from the currently configured scope and relay them as output. Messages can be
+ * filtered by queue, message class and type, and digital twin; the filter is evaluated by the
+ * controller service before the messages are converted.
  */
 @Tags({"k.LAB", "source", "event-driven"})
-@CapabilityDescription("Generates FlowFiles when events are received from k.LAB Controller Service")
+@CapabilityDescription(
+    "Generates FlowFiles when events are received from k.LAB Controller Service, either one per"
+        + " event or in batches of newline-delimited JSON")
 @InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@WritesAttributes({
+  @WritesAttribute(
+      attribute = "event.count",
+      description = "In batch mode, the number of events in the FlowFile"),
+  @WritesAttribute(
+      attribute = "event.timestamp.first",
+      description = "In batch mode, the timestamp of the earliest event in the FlowFile"),
+  @WritesAttribute(
+      attribute = "event.timestamp.last",
+      description = "In batch mode, the timestamp of the latest event in the FlowFile")
+})
 public class MessageRelayProcessor extends AbstractProcessor {
 
   // TODO this must be bound manually. See below for automated strategy. Not sure which is the best way.
@@ -57,12 +79,112 @@ public class MessageRelayProcessor extends AbstractProcessor {
           .description("Successfully generated FlowFiles")
           .build();
 
-  private static final List<PropertyDescriptor> DESCRIPTORS = List.of();
+  public static final AllowableValue OUTPUT_SINGLE =
+      new AllowableValue(
+          "single", "One Event per FlowFile", "Each event is written to its own FlowFile.");
+
+  public static final AllowableValue OUTPUT_BATCH =
+      new AllowableValue(
+          "batch",
+          "Batched Events",
+          "Events are written as newline-delimited JSON, one payload per line, into FlowFiles of"
+              + " up to Batch Size events.");
+
+  public static final PropertyDescriptor OUTPUT_MODE =
+      new PropertyDescriptor.Builder()
+          .name("output-mode")
+          .displayName("Output Mode")
+          .description("Whether each event is emitted as a FlowFile or events are batched.")
+          .required(true)
+          .allowableValues(OUTPUT_SINGLE, OUTPUT_BATCH)
+          .defaultValue(OUTPUT_SINGLE.getValue())
+          .build();
+
+  public static final PropertyDescriptor BATCH_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("batch-size")
+          .displayName("Batch Size")
+          .description("The maximum number of events written to a single FlowFile.")
+          .required(true)
+          .defaultValue("1000")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(OUTPUT_MODE, OUTPUT_BATCH)
+          .build();
+
+  public static final PropertyDescriptor MAX_BATCH_WAIT =
+      new PropertyDescriptor.Builder()
+          .name("max-batch-wait")
+          .displayName("Maximum Batch Wait")
+          .description(
+              "How long to wait for more events to fill a batch before emitting what has been"
+                  + " received. A value of 0 ms emits the events already queued without waiting.")
+          .required(true)
+          .defaultValue("500 ms")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .dependsOn(OUTPUT_MODE, OUTPUT_BATCH)
+          .build();
+
+  public static final PropertyDescriptor EVENT_QUEUES =
+      new PropertyDescriptor.Builder()
+          .name("event-queues")
+          .displayName("Event Queues")
+          .description(
+              "A comma-separated list of the message queues to relay, among those the controller"
+                  + " service listens to. Empty relays all of them.")
+          .required(false)
+          .addValidator(enumListValidator(Message.Queue.class))
+          .build();
+
+  public static final PropertyDescriptor MESSAGE_CLASSES =
+      new PropertyDescriptor.Builder()
+          .name("message-classes")
+          .displayName("Message Classes")
+          .description(
+              "A comma-separated list of the k.LAB message classes to relay, e.g. DigitalTwin."
+                  + " Empty relays all of them.")
+          .required(false)
+          .addValidator(enumListValidator(Message.MessageClass.class))
+          .build();
+
+  public static final PropertyDescriptor MESSAGE_TYPES =
+      new PropertyDescriptor.Builder()
+          .name("message-types")
+          .displayName("Message Types")
+          .description(
+              "A comma-separated list of the k.LAB message types to relay. Empty relays all of"
+                  + " them.")
+          .required(false)
+          .addValidator(enumListValidator(Message.MessageType.class))
+          .build();
+
+  public static final PropertyDescriptor EVENT_SOURCES =
+      new PropertyDescriptor.Builder()
+          .name("event-sources")
+          .displayName("Digital Twin URLs")
+          .description(
+              "A comma-separated list of digital twin URLs; only the messages received by their"
+                  + " scopes are relayed. Empty relays the messages of all scopes.")
+          .required(false)
+          .addValidator(
+              StandardValidators.createListValidator(true, true, StandardValidators.URL_VALIDATOR))
+          .build();
+
+  private static final List<PropertyDescriptor> DESCRIPTORS =
+      List.of(
+          OUTPUT_MODE,
+          BATCH_SIZE,
+          MAX_BATCH_WAIT,
+          EVENT_QUEUES,
+          MESSAGE_CLASSES,
+          MESSAGE_TYPES,
+          EVENT_SOURCES);
   //      Arrays.asList(KLAB_CONTROLLER_SERVICE);
 
   private static final Set<Relationship> RELATIONSHIPS = Collections.singleton(REL_SUCCESS);
 
   private final BlockingQueue<EventData> eventQueue = new LinkedBlockingQueue<>();
+  // the same instance must be passed to add and remove, method references are not equal
+  private final Consumer<EventData> eventListener = this::handleEvent;
   private volatile boolean isRunning = false;
 
   @Override
@@ -83,9 +205,55 @@ public class MessageRelayProcessor extends AbstractProcessor {
         (KlabController)
             context.getControllerServiceLookup().getControllerService("klab-controller-service");
 
+    // The filter is evaluated by the controller, before the messages are converted
+    var filter =
+        new EventFilter.Builder()
+            .setQueues(parseList(context, EVENT_QUEUES, Message.Queue::valueOf))
+            .setMessageClasses(parseList(context, MESSAGE_CLASSES, Message.MessageClass::valueOf))
+            .setMessageTypes(parseList(context, MESSAGE_TYPES, Message.MessageType::valueOf))
+            .setSources(parseList(context, EVENT_SOURCES, Function.identity()))
+            .build();
+
     isRunning = true;
     // Register as listener with the controller service
-    controllerService.addEventListener(this::handleEvent);
+    controllerService.addEventListener(eventListener, filter);
+  }
+
+  private static <T> List<T> parseList(
+      ProcessContext context, PropertyDescriptor property, Function<String, T> parser) {
+    String value = context.getProperty(property).getValue();
+    if (value == null) {
+      return List.of();
+    }
+    return Arrays.stream(value.split(","))
+        .map(String::trim)
+        .filter(name -> !name.isEmpty())
+        .map(parser)
+        .toList();
+  }
+
+  private static <E extends Enum<E>> Validator enumListValidator(Class<E> enumClass) {
+    return (subject, input, context) -> {
+      for (String name : input.split(",")) {
+        try {
+          if (!name.isBlank()) {
+            Enum.valueOf(enumClass, name.trim());
+          }
+        } catch (IllegalArgumentException e) {
+          return new ValidationResult.Builder()
+              .subject(subject)
+              .input(input)
+              .valid(false)
+              .explanation(
+                  "'"
+                      + name.trim()
+                      + "' is not one of "
+                      + Arrays.toString(enumClass.getEnumConstants()))
+              .build();
+        }
+      }
+      return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+    };
   }
 
   @OnStopped
@@ -101,7 +269,7 @@ public class MessageRelayProcessor extends AbstractProcessor {
         (KlabController)
             context.getControllerServiceLookup().getControllerService("klab-controller-service");
     // Unregister listener
-    controllerService.removeEventListener(this::handleEvent);
+    controllerService.removeEventListener(eventListener);
     eventQueue.clear();
   }
 
@@ -113,6 +281,11 @@ public class MessageRelayProcessor extends AbstractProcessor {
       return;
     }
 
+    if (OUTPUT_BATCH.getValue().equals(context.getProperty(OUTPUT_MODE).getValue())) {
+      emitBatch(context, session);
+      return;
+    }
+
     // Poll for events with a timeout to avoid blocking indefinitely
     EventData eventData = eventQueue.poll();
     if (eventData == null) {
@@ -144,6 +317,68 @@ public class MessageRelayProcessor extends AbstractProcessor {
     }
   }
 
+  /*
+  Drain up to a batch of events, waiting at most the configured time for the batch to fill, and
+  write them as newline-delimited JSON into a single FlowFile.
+   */
+  private void emitBatch(final ProcessContext context, final ProcessSession session) {
+    final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+    final long deadline =
+        System.nanoTime()
+            + context.getProperty(MAX_BATCH_WAIT).asTimePeriod(TimeUnit.NANOSECONDS);
+
+    List<EventData> events = new ArrayList<>(Math.min(batchSize, 1024));
+    eventQueue.drainTo(events, batchSize);
+    try {
+      while (events.size() < batchSize) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          break;
+        }
+        EventData next = eventQueue.poll(remaining, TimeUnit.NANOSECONDS);
+        if (next == null) {
+          break;
+        }
+        events.add(next);
+        eventQueue.drainTo(events, batchSize - events.size());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (events.isEmpty()) {
+      context.yield();
+      return;
+    }
+
+    try {
+      FlowFile flowFile = session.create();
+      flowFile = session.write(flowFile, out -> writeBatch(events, out));
+
+      // Attributes shared by all the events are kept, the others are per event and are dropped
+      Map<String, String> attributes = new HashMap<>(events.get(0).getAttributes());
+      long first = Long.MAX_VALUE;
+      long last = Long.MIN_VALUE;
+      for (EventData eventData : events) {
+        attributes.entrySet().retainAll(eventData.getAttributes().entrySet());
+        first = Math.min(first, eventData.getTimestamp());
+        last = Math.max(last, eventData.getTimestamp());
+      }
+      attributes.put("event.count", String.valueOf(events.size()));
+      attributes.put("event.timestamp.first", String.valueOf(first));
+      attributes.put("event.timestamp.last", String.valueOf(last));
+      attributes.put(CoreAttributes.MIME_TYPE.key(), "application/x-ndjson");
+      flowFile = session.putAllAttributes(flowFile, attributes);
+
+      session.transfer(flowFile, REL_SUCCESS);
+      session.commitAsync();
+
+    } catch (Exception e) {
+      getLogger().error("Failed to process a batch of {} events", events.size(), e);
+      session.rollback();
+    }
+  }
+
   private void handleEvent(EventData eventData) {
     if (isRunning) {
       try {
@@ -155,7 +390,16 @@ public class MessageRelayProcessor extends AbstractProcessor {
     }
   }
 
+  /* Write the events as newline-delimited JSON, one payload per line */
+  static void writeBatch(List<EventData> events, OutputStream out) throws IOException {
+    for (EventData eventData : events) {
+      eventData.writePayload(out);
+      out.write('\n');
+    }
+  }
+
   private void writeEventToStream(EventData eventData, OutputStream out) throws IOException {
-    out.write(Utils.Json.printAsJson(eventData.getPayload()).getBytes());
+    // serialized once and shared with the other listeners of the event
+    eventData.writePayload(out);
   }
 }
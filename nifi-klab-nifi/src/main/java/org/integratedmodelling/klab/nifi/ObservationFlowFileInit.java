@@ -3,10 +3,8 @@ package org.integratedmodelling.klab.nifi;
 import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_SEMANTIC_TYPES;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonParser;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
@@ -29,7 +27,9 @@ import org.integratedmodelling.klab.api.knowledge.*;
 import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
 import org.integratedmodelling.klab.api.knowledge.observation.scale.time.Time;
 import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
 import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequestCodec;
 
 @Tags({"k.LAB", "source", "event-driven"})
 @CapabilityDescription("Generates FlowFiles for the Observation Relay Processor")
@@ -107,12 +107,9 @@ public class ObservationFlowFileInit extends AbstractProcessor {
     }
 
     KlabObservationNifiRequest request = null;
-    try (final InputStream in = session.read(flowFile);
-        final InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-      var json = JsonParser.parseReader(reader);
-      request =
-          new Gson().fromJson(json.getAsJsonObject().getAsString(), KlabObservationNifiRequest.class);
-    } catch (final IOException e) {
+    try (final InputStream in = session.read(flowFile)) {
+      request = KlabObservationNifiRequestCodec.read(in);
+    } catch (final IOException | KlabNifiException e) {
       getLogger().error("Failed to read FlowFile content due to {}", new Object[] {e}, e);
     }
 
@@ -1,43 +1,34 @@
 package org.integratedmodelling.klab.nifi;
 
-import com.google.gson.*;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.lang.reflect.Type;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.integratedmodelling.common.knowledge.ConceptImpl;
-import org.integratedmodelling.common.knowledge.ObservableImpl;
-import org.integratedmodelling.common.utils.Utils;
-import org.integratedmodelling.klab.api.collections.Parameters;
-import org.integratedmodelling.klab.api.collections.impl.MetadataImpl;
-import org.integratedmodelling.klab.api.collections.impl.ParametersImpl;
-import org.integratedmodelling.klab.api.data.Metadata;
-import org.integratedmodelling.klab.api.geometry.Geometry;
-import org.integratedmodelling.klab.api.geometry.impl.GeometryImpl;
-import org.integratedmodelling.klab.api.knowledge.*;
-import org.integratedmodelling.klab.api.knowledge.Observable;
 import org.integratedmodelling.klab.api.knowledge.observation.Observation;
-import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
 import org.integratedmodelling.klab.api.scope.ContextScope;
 import org.integratedmodelling.klab.api.services.runtime.Message;
+import org.integratedmodelling.klab.nifi.utils.KlabNifiException;
 import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequest;
+import org.integratedmodelling.klab.nifi.utils.KlabObservationNifiRequestCodec;
+import org.integratedmodelling.klab.nifi.utils.ObservationSerializer;
+import org.integratedmodelling.klab.nifi.utils.ObservationSubmitter;
+import org.integratedmodelling.klab.nifi.utils.PhaseTimings;
+import org.integratedmodelling.klab.nifi.utils.RequestFingerprint;
+import org.integratedmodelling.klab.nifi.utils.RetryPolicy;
 
 /**
  * Submit observations (unresolved or resolved through adapter metadata) and output their
@@ -62,6 +53,42 @@ public class ObservationRelayProcessor extends AbstractProcessor {
           .identifiesControllerService(KlabController.class)
           .build();
 
+  public static final AllowableValue FORMAT_KLAB_JSON =
+      new AllowableValue(
+          ObservationSerializer.Format.KLAB_JSON.name(),
+          "k.LAB JSON",
+          "The full k.LAB JSON serialization of the observation.");
+
+  public static final AllowableValue FORMAT_JSON =
+      new AllowableValue(
+          ObservationSerializer.Format.JSON.name(),
+          "Compact JSON",
+          "Compact JSON with a fixed set of fields: id, name, urn, type and encoded geometry.");
+
+  public static final AllowableValue FORMAT_AVRO =
+      new AllowableValue(
+          ObservationSerializer.Format.AVRO.name(),
+          "Avro",
+          "An Avro data file with the same fields as Compact JSON and the schema embedded.");
+
+  public static final AllowableValue FORMAT_CBOR =
+      new AllowableValue(
+          ObservationSerializer.Format.CBOR.name(),
+          "CBOR",
+          "Binary CBOR with the same fields as Compact JSON.");
+
+  public static final PropertyDescriptor OUTPUT_FORMAT =
+      new PropertyDescriptor.Builder()
+          .name("output-format")
+          .displayName("Output Format")
+          .description(
+              "How resolved observations are written to the success FlowFiles. All formats but"
+                  + " k.LAB JSON are streamed into the content and share a stable schema.")
+          .required(true)
+          .allowableValues(FORMAT_KLAB_JSON, FORMAT_JSON, FORMAT_AVRO, FORMAT_CBOR)
+          .defaultValue(FORMAT_KLAB_JSON.getValue())
+          .build();
+
   public static final Relationship REL_SUCCESS =
       new Relationship.Builder()
           .name("success")
@@ -71,7 +98,26 @@ public class ObservationRelayProcessor extends AbstractProcessor {
   public static final Relationship REL_FAILURE =
       new Relationship.Builder()
           .name("failure")
-          .description("Unresolved observations that failed validation or resolution")
+          .description(
+              "Observation requests that failed validation or resolution, with their original"
+                  + " content")
+          .build();
+
+  public static final Relationship REL_RETRY =
+      new Relationship.Builder()
+          .name("retry")
+          .description(
+              "Observation requests that failed for a transient reason and can be submitted again,"
+                  + " penalized and with the klab.retry.* attributes set; usually connected back"
+                  + " to this processor")
+          .build();
+
+  public static final Relationship REL_UNAVAILABLE =
+      new Relationship.Builder()
+          .name("unavailable")
+          .description(
+              "Observation requests for a digital twin that is failing, routed without contacting"
+                  + " it while its circuit breaker in the controller service is open")
           .build();
 
   public static final Relationship REL_EVENTS =
@@ -83,12 +129,22 @@ public class ObservationRelayProcessor extends AbstractProcessor {
           .build();
 
   public static final List<PropertyDescriptor> PROPERTY_DESCRIPTORS =
-      List.of(KLAB_CONTROLLER_SERVICE);
+      List.of(
+          KLAB_CONTROLLER_SERVICE,
+          OUTPUT_FORMAT,
+          RetryPolicy.MAX_ATTEMPTS,
+          RetryPolicy.INITIAL_BACKOFF,
+          RetryPolicy.MAX_BACKOFF,
+          PhaseTimings.TIMING_ATTRIBUTES);
 
-  public static Set<Relationship> RELATIONSHIPS = Set.of(REL_SUCCESS, REL_FAILURE, REL_EVENTS);
+  public static Set<Relationship> RELATIONSHIPS =
+      Set.of(REL_SUCCESS, REL_FAILURE, REL_RETRY, REL_EVENTS, REL_UNAVAILABLE);
 
   private volatile KlabController klabController;
   private volatile ContextScope contextScope;
+  private volatile ObservationSerializer.Format outputFormat;
+  private volatile RetryPolicy retryPolicy;
+  private volatile boolean timingAttributes;
   private final Set<Consumer<EventData>> eventConsumers = new HashSet<>();
   private volatile boolean isRunning = false;
 
@@ -113,7 +169,13 @@ public class ObservationRelayProcessor extends AbstractProcessor {
         context.getProperty(KLAB_CONTROLLER_SERVICE).asControllerService(KlabController.class);
 
     // Get the ContextScope from the controller
-    contextScope = (ContextScope) klabController.getScope(ContextScope.class);
+    // Until a digital twin is configured this is the user scope, and requests must name their DT
+    contextScope =
+        klabController.getScope(ContextScope.class) instanceof ContextScope scope ? scope : null;
+    outputFormat =
+        ObservationSerializer.Format.valueOf(context.getProperty(OUTPUT_FORMAT).getValue());
+    retryPolicy = RetryPolicy.create(context);
+    timingAttributes = context.getProperty(PhaseTimings.TIMING_ATTRIBUTES).asBoolean();
     if (contextScope == null) {
       getLogger().error("No ContextScope available from the KlabController");
     }
@@ -126,140 +188,121 @@ public class ObservationRelayProcessor extends AbstractProcessor {
     eventConsumers.clear();
   }
 
-  class ObservableTypeAdapter implements JsonDeserializer<Observable> {
-    @Override
-    public Observable deserialize(
-        JsonElement json, Type typeOfT, JsonDeserializationContext context)
-        throws JsonParseException {
-      JsonObject jsonObject = json.getAsJsonObject();
-      return context.deserialize(jsonObject, ObservableImpl.class);
-    }
-  }
-
-  class MetadataTypeAdapter implements JsonDeserializer<Metadata> {
-    @Override
-    public Metadata deserialize(
-            JsonElement json, Type typeOfT, JsonDeserializationContext context)
-            throws JsonParseException {
-      JsonObject jsonObject = json.getAsJsonObject();
-      return context.deserialize(jsonObject, MetadataImpl.class);
-    }
-  }
-
-  class ConceptTypeAdapter implements JsonDeserializer<Concept> {
-    @Override
-    public Concept deserialize(
-            JsonElement json, Type typeOfT, JsonDeserializationContext context)
-            throws JsonParseException {
-      JsonObject jsonObject = json.getAsJsonObject();
-      return context.deserialize(jsonObject, ConceptImpl.class);
-    }
-  }
-
-  class GeometryTypeAdapter implements JsonDeserializer<Geometry> {
-    @Override
-    public Geometry deserialize(
-            JsonElement json, Type typeOfT, JsonDeserializationContext context)
-            throws JsonParseException {
-      JsonObject jsonObject = json.getAsJsonObject();
-      return context.deserialize(jsonObject, GeometryImpl.class);
-    }
-  }
-
-  class ParametersTypeAdapter implements JsonDeserializer<Parameters> {
-    @Override
-    public Parameters deserialize(
-            JsonElement json, Type typeOfT, JsonDeserializationContext context)
-            throws JsonParseException {
-      JsonObject jsonObject = json.getAsJsonObject();
-      return context.deserialize(jsonObject, ParametersImpl.class);
-    }
-  }
-
   @Override
   public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
-    if (!isRunning || contextScope == null) {
+    if (!isRunning || klabController.getReadiness() != KlabController.Readiness.READY) {
       context.yield();
       return;
     }
 
     FlowFile flowFile = session.get();
     if (flowFile == null) {
-      getLogger().error("Flowfile is null.. :)))");
       return;
     }
-
-    JsonObject flowFileAsJson = null;
-    try (final InputStream in = session.read(flowFile);
-         final InputStreamReader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
-      final JsonElement root = JsonParser.parseReader(reader);
-
-      flowFileAsJson = root.getAsJsonObject();
-    } catch (final IOException e) {
-      getLogger().error("Failed to read FlowFile content due to {}", new Object[] {e}, e);
+    if (!retryPolicy.isDue(flowFile)) {
+      // a retry looping back before its backoff has elapsed
+      session.transfer(session.penalize(flowFile));
+      return;
     }
 
-    var observableJson = flowFileAsJson.getAsJsonObject("observation");
-    flowFileAsJson.remove("observation");
-
-    AtomicReference<ObservationImpl> observationRef = new AtomicReference<>();
-
-    final GsonBuilder builder = new GsonBuilder();
-    builder.registerTypeAdapter(Observable.class, new ObservableTypeAdapter());
-    builder.registerTypeAdapter(Metadata.class, new MetadataTypeAdapter());
-    builder.registerTypeAdapter(Concept.class, new ConceptTypeAdapter());
-    builder.registerTypeAdapter(Geometry.class, new GeometryTypeAdapter());
-    builder.registerTypeAdapter(Parameters.class, new ParametersTypeAdapter());
-    Gson gson = builder.create();
-    try {
-
-        var obs = gson.fromJson(flowFileAsJson, KlabObservationNifiRequest.class);
-        //String jsonObservation = obs.toJson(gson.fromJson(observableJson, Observable.class));
-        //observationRef.set(gson.fromJson(jsonObservation, ObservationImpl.class));
-        getLogger().info("Read some observation...");
-    } catch (Exception e) {
+    // Stream the request fields; an embedded "observation" object is skipped without being parsed
+    PhaseTimings timings = new PhaseTimings();
+    long start = PhaseTimings.start();
+    KlabObservationNifiRequest request;
+    try (final InputStream in = session.read(flowFile)) {
+      request = KlabObservationNifiRequestCodec.read(in);
+      timings.record(PhaseTimings.Phase.PARSE, start);
+    } catch (final IOException | KlabNifiException | RuntimeException e) {
       getLogger().error("Error reading observation from FlowFile", e);
       session.transfer(flowFile, REL_FAILURE);
       return;
     }
 
-
-    Observation observation = observationRef.get();
-
-    if (observation == null) {
-      getLogger().error("Found the observation to be null...");
+    ContextScope scope;
+    try {
+      scope =
+          request.getDigitalTwin() == null
+              ? contextScope
+              : klabController.getContextScope(request.getDigitalTwin());
+    } catch (DigitalTwinUnavailableException e) {
+      getLogger().debug(e.getMessage());
+      session.transfer(flowFile, REL_UNAVAILABLE);
+      return;
+    }
+    if (scope == null) {
+      getLogger().error("No ContextScope available for the observation");
       session.transfer(flowFile, REL_FAILURE);
       return;
     }
 
-    session.remove(flowFile); // remove the incoming flowfile, and create another one
-
-    FlowFile successFlowFile = session.create(flowFile);
-
-      try {
-        CompletableFuture<Observation> future = contextScope.submit(observation);
-        Observation resolvedObservation = future.get();
-
-        session.write(successFlowFile, out ->{
-          serializeObservation(resolvedObservation, out);
-        });
-
-        Map<String, String> attributes = new HashMap<>();
-
-        attributes.put("observation.id", resolvedObservation.getId() + "");
-        attributes.put("observation.type", resolvedObservation.getType().toString());
-
-        successFlowFile = session.putAllAttributes(successFlowFile, attributes);
+    Observation observation;
+    try {
+      observation = ObservationSubmitter.buildObservation(klabController, scope, request, timings);
+    } catch (Exception e) {
+      getLogger().error("Error building observation from FlowFile", e);
+      retryPolicy.transferFailure(session, flowFile, e, REL_RETRY, REL_FAILURE);
+      return;
+    }
 
-        getLogger().info("Success Flowfile being sent to Success Relation..");
-        session.transfer(successFlowFile, REL_SUCCESS);
+    // Identical requests in flight share a single submission
+    start = PhaseTimings.start();
+    CompletableFuture<Observation> future;
+    try {
+      future =
+          klabController.submitObservation(
+              request.getDigitalTwin(), RequestFingerprint.of(request), scope, observation);
+    } catch (SubmissionRejectedException e) {
+      getLogger().debug("{}, penalizing the FlowFile", e.getMessage());
+      session.transfer(session.penalize(flowFile));
+      return;
+    } catch (DigitalTwinUnavailableException e) {
+      getLogger().debug(e.getMessage());
+      session.transfer(flowFile, REL_UNAVAILABLE);
+      return;
+    } catch (RuntimeException e) {
+      getLogger().error("Error submitting observation", e);
+      retryPolicy.transferFailure(session, flowFile, e, REL_RETRY, REL_FAILURE);
+      return;
+    }
 
-      } catch (Exception e) {
-        getLogger().error("Error in processing Observation: " , e);
-        getLogger().info("Routing Success Flowfile to Failure Rel");
-        session.transfer(successFlowFile, REL_FAILURE);
+    // The request is kept until resolved, so that a failure routes it with its original content
+    FlowFile successFlowFile = null;
+    try {
+      Observation resolvedObservation = future.get();
+      timings.record(PhaseTimings.Phase.SUBMIT, start);
+
+      start = PhaseTimings.start();
+      successFlowFile = session.create(flowFile);
+      successFlowFile =
+          session.write(
+              successFlowFile,
+              out -> ObservationSerializer.write(resolvedObservation, outputFormat, out));
+      timings.record(PhaseTimings.Phase.WRITE, start);
+
+      Map<String, String> attributes = new HashMap<>();
+
+      attributes.put("observation.id", resolvedObservation.getId() + "");
+      attributes.put("observation.type", resolvedObservation.getType().toString());
+      attributes.put(CoreAttributes.MIME_TYPE.key(), outputFormat.getMimeType());
+      timings.report(
+          session,
+          klabController,
+          request.getDigitalTwin(),
+          timingAttributes ? attributes : null);
+
+      successFlowFile = session.putAllAttributes(successFlowFile, attributes);
+
+      getLogger().info("Success Flowfile being sent to Success Relation..");
+      session.transfer(successFlowFile, REL_SUCCESS);
+      session.remove(flowFile);
+    } catch (Exception e) {
+      getLogger().error("Error in processing Observation: " , e);
+      if (successFlowFile != null) {
+        session.remove(successFlowFile);
       }
+      retryPolicy.transferFailure(session, flowFile, e, REL_RETRY, REL_FAILURE);
+    }
   }
 
   private void handleEventData(EventData eventData, ProcessSession session) {
@@ -279,8 +322,8 @@ public class ObservationRelayProcessor extends AbstractProcessor {
                 eventFlowFile,
                 out -> {
                   try {
-                    // Serialize the event payload
-                    serializeEventPayload(eventData.getPayload(), out);
+                    // Serialized once and shared with the other listeners of the event
+                    eventData.writePayload(out);
                   } catch (IOException e) {
                     getLogger().error("Failed to write event to FlowFile", e);
                     throw new ProcessException("Failed to write event", e);
@@ -298,18 +341,4 @@ public class ObservationRelayProcessor extends AbstractProcessor {
       }
     }
   }
-
-  private void serializeObservation(Observation observation, OutputStream out) throws IOException {
-    // Implementation would depend on your serialization library
-    // This is a placeholder - you'd use a proper JSON/serialization library
-    String json = Utils.Json.asString(observation);
-    out.write(json.getBytes());
-  }
-
-  private void serializeEventPayload(Object payload, OutputStream out) throws IOException {
-    // Implementation would depend on your serialization library
-    // This is a placeholder - you'd use a proper JSON/serialization library
-    String json = Utils.Json.asString(payload);
-    out.write(json.getBytes());
-  }
 }
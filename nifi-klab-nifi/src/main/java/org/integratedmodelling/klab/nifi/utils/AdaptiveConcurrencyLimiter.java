@@ -0,0 +1,96 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the submissions in flight to a digital twin, adapting the limit to its response with an
+ * additive increase, multiplicative decrease (AIMD) policy. Each submission completing within the
+ * target latency grows the limit by {@code 1/limit}, i.e. by one per window of submissions, as
+ * long as the limit is actually in use; a failed submission or submission slower than the target
+ * shrinks it by {@link #BACKOFF_RATIO}. The limit shrinks at most once per window: submissions
+ * made before the last decrease were in flight when it happened, so their failures do not shrink
+ * it again, and a burst of concurrent failures costs a single decrease.
+ */
+public final class AdaptiveConcurrencyLimiter {
+
+  /** Applied to the limit for a failed or slow submission. */
+  public static final double BACKOFF_RATIO = 0.9;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long targetLatencyNanos;
+  private double limit;
+  private int inFlight;
+  private long lastDecreaseNanos;
+
+  public AdaptiveConcurrencyLimiter(
+      int initialLimit, int minLimit, int maxLimit, long targetLatency, TimeUnit unit) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException(
+          "Invalid concurrency limits: min " + minLimit + ", max " + maxLimit);
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    this.targetLatencyNanos = unit.toNanos(targetLatency);
+    this.lastDecreaseNanos = System.nanoTime();
+  }
+
+  /**
+   * Take a permit, waiting up to the timeout for one to be released.
+   *
+   * @return false if no permit became available in time
+   */
+  public synchronized boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (inFlight >= (int) limit) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    inFlight++;
+    return true;
+  }
+
+  /** Return a permit that was not used for a submission, leaving the limit unchanged. */
+  public synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  /**
+   * Return the permit of a completed submission and adapt the limit to its outcome.
+   *
+   * @param startNanos the {@link System#nanoTime()} at which the submission was made
+   * @param failed whether the submission failed in a way that tells of an overload, e.g. timed out
+   */
+  public synchronized void release(long startNanos, boolean failed) {
+    long now = System.nanoTime();
+    if (failed || now - startNanos > targetLatencyNanos) {
+      if (startNanos - lastDecreaseNanos >= 0) {
+        limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        lastDecreaseNanos = now;
+      }
+    } else if (inFlight * 2 >= limit) {
+      // a limit that is not used is not known to be safe, so it only grows under load
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+    inFlight--;
+    notifyAll();
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "limit=" + (int) limit + ", inFlight=" + inFlight;
+  }
+}
@@ -0,0 +1,140 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calls to a digital twin that keeps failing. The outcomes of the last calls are kept in a
+ * sliding window; when the window is full and the share of failures reaches the threshold, the
+ * breaker opens and rejects all calls for the open duration. It then lets a single probe call
+ * through: the breaker closes if the probe succeeds, and opens again if it fails.
+ */
+public final class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final boolean[] outcomes;
+  private final int failureThreshold;
+  private final long openNanos;
+  private State state = State.CLOSED;
+  private int calls;
+  private int failures;
+  private int next;
+  private long openedAt;
+  private boolean probing;
+
+  /**
+   * @param window the number of recent calls whose outcome is considered
+   * @param failurePercentage the percentage of failed calls in the window opening the breaker
+   * @param openDuration how long calls are rejected before a probe is allowed
+   */
+  public CircuitBreaker(int window, int failurePercentage, long openDuration, TimeUnit unit) {
+    if (window < 1 || failurePercentage < 1 || failurePercentage > 100) {
+      throw new IllegalArgumentException(
+          "Invalid circuit breaker window " + window + " or percentage " + failurePercentage);
+    }
+    this.outcomes = new boolean[window];
+    this.failureThreshold = Math.max(1, (int) Math.ceil(window * failurePercentage / 100.0));
+    this.openNanos = unit.toNanos(openDuration);
+  }
+
+  /**
+   * Whether a call may be made now. When the open duration has elapsed, the first caller is let
+   * through as the probe and must report its outcome.
+   */
+  public synchronized boolean tryAcquire() {
+    return switch (state()) {
+      case CLOSED -> true;
+      case OPEN -> false;
+      case HALF_OPEN -> {
+        if (probing) {
+          yield false;
+        }
+        probing = true;
+        yield true;
+      }
+    };
+  }
+
+  /** Whether calls are being rejected, without taking the probe when one is allowed. */
+  public synchronized boolean isOpen() {
+    return state() == State.OPEN || (state == State.HALF_OPEN && probing);
+  }
+
+  /** Give back a call that was acquired but not made, so that another caller can probe. */
+  public synchronized void release() {
+    if (state == State.HALF_OPEN) {
+      probing = false;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      close();
+    } else if (state == State.CLOSED) {
+      record(false);
+    }
+  }
+
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      open();
+    } else if (state == State.CLOSED) {
+      record(true);
+    }
+  }
+
+  public synchronized State getState() {
+    return state();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return state() + ", " + failures + " failures in the last " + calls + " calls";
+  }
+
+  /* The current state, moving from open to half-open once the open duration has elapsed */
+  private State state() {
+    if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+      state = State.HALF_OPEN;
+      probing = false;
+    }
+    return state;
+  }
+
+  private void record(boolean failed) {
+    if (calls == outcomes.length) {
+      if (outcomes[next]) {
+        failures--;
+      }
+    } else {
+      calls++;
+    }
+    outcomes[next] = failed;
+    if (failed) {
+      failures++;
+    }
+    next = (next + 1) % outcomes.length;
+    // checked on successes too, as the window may only just have filled up
+    if (calls == outcomes.length && failures >= failureThreshold) {
+      open();
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedAt = System.nanoTime();
+    probing = false;
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    calls = 0;
+    failures = 0;
+    next = 0;
+    probing = false;
+  }
+}
@@ -0,0 +1,259 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import org.integratedmodelling.klab.nifi.EventListenerStatistics;
+
+/**
+ * A bounded, preallocated ring buffer broadcasting every published event to all its subscribers.
+ * Each subscriber reads the ring from its own cursor on a dedicated thread, so a slow listener
+ * only delays itself until the ring is full; what happens then is decided by the {@link
+ * OverflowPolicy}.
+ */
+public class EventRingBuffer<T> {
+
+  public enum OverflowPolicy {
+    /** The publisher waits until the slowest subscriber has made room. */
+    BLOCK,
+    /** The oldest events are overwritten, and skipped by the subscribers that had not read them. */
+    DROP_OLDEST,
+    /** The new event is discarded. */
+    DROP_NEWEST
+  }
+
+  private final class Subscription {
+    private final Consumer<? super T> listener;
+    private final Predicate<? super T> filter;
+    private final String name;
+    private long cursor;
+    private long delivered;
+    private long dropped;
+    private boolean closed;
+
+    private Subscription(
+        Consumer<? super T> listener, Predicate<? super T> filter, String name, long cursor) {
+      this.listener = listener;
+      this.filter = filter;
+      this.name = name;
+      this.cursor = cursor;
+    }
+  }
+
+  private final Object[] slots;
+  private final OverflowPolicy policy;
+  private final String threadPrefix;
+  private final Consumer<RuntimeException> onListenerError;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition published = lock.newCondition();
+  private final Condition consumed = lock.newCondition();
+  private final List<Subscription> subscriptions = new ArrayList<>();
+  private long head;
+  private boolean closed;
+
+  /**
+   * @param capacity the number of slots, i.e. how far the slowest subscriber may fall behind
+   * @param policy what to do when publishing into a full ring
+   * @param threadPrefix the name prefix of the subscriber threads
+   * @param onListenerError called with the exceptions thrown by listeners
+   */
+  public EventRingBuffer(
+      int capacity,
+      OverflowPolicy policy,
+      String threadPrefix,
+      Consumer<RuntimeException> onListenerError) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Ring buffer capacity must be positive");
+    }
+    this.slots = new Object[capacity];
+    this.policy = policy;
+    this.threadPrefix = threadPrefix;
+    this.onListenerError = onListenerError;
+  }
+
+  /**
+   * Publish an event to all current subscribers. With the {@link OverflowPolicy#BLOCK} policy this
+   * waits as long as the ring is full.
+   *
+   * @return false if the event was discarded, because of the overflow policy, because the buffer is
+   *     closed or because the publisher was interrupted while waiting
+   */
+  public boolean publish(T event) {
+    lock.lock();
+    try {
+      if (closed) {
+        return false;
+      }
+      if (subscriptions.isEmpty()) {
+        return true;
+      }
+      while (head - slowestCursor() >= slots.length) {
+        switch (policy) {
+          case DROP_NEWEST -> {
+            for (Subscription subscription : subscriptions) {
+              subscription.dropped++;
+            }
+            return false;
+          }
+          case DROP_OLDEST -> {
+            for (Subscription subscription : subscriptions) {
+              if (head - subscription.cursor >= slots.length) {
+                subscription.cursor++;
+                subscription.dropped++;
+              }
+            }
+          }
+          case BLOCK -> {
+            consumed.await();
+            if (closed) {
+              return false;
+            }
+          }
+        }
+      }
+      slots[(int) (head % slots.length)] = event;
+      head++;
+      published.signalAll();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void subscribe(Consumer<? super T> listener, String name) {
+    subscribe(listener, event -> true, name);
+  }
+
+  /**
+   * Start delivering the events published from now on to the listener, on a new thread. Events not
+   * matching the filter are skipped; the filter is evaluated while holding the buffer lock, so it
+   * must be cheap. A listener subscribed more than once receives each event once per subscription.
+   */
+  public void subscribe(
+      Consumer<? super T> listener, Predicate<? super T> filter, String name) {
+    Subscription subscription;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Event buffer is closed");
+      }
+      subscription = new Subscription(listener, filter, name, head);
+      subscriptions.add(subscription);
+    } finally {
+      lock.unlock();
+    }
+    Thread thread = new Thread(() -> deliver(subscription), threadPrefix + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop delivering events to the listener. An event being delivered when this is called is
+   * completed; undelivered events are discarded.
+   */
+  public void unsubscribe(Consumer<? super T> listener) {
+    lock.lock();
+    try {
+      subscriptions.removeIf(
+          subscription -> {
+            if (subscription.listener.equals(listener)) {
+              subscription.closed = true;
+              return true;
+            }
+            return false;
+          });
+      published.signalAll();
+      consumed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Stop all subscribers and reject further events. */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      for (Subscription subscription : subscriptions) {
+        subscription.closed = true;
+      }
+      subscriptions.clear();
+      published.signalAll();
+      consumed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public List<EventListenerStatistics> getStatistics() {
+    lock.lock();
+    try {
+      List<EventListenerStatistics> ret = new ArrayList<>(subscriptions.size());
+      for (Subscription subscription : subscriptions) {
+        ret.add(
+            new EventListenerStatistics(
+                subscription.name,
+                head - subscription.cursor,
+                subscription.delivered,
+                subscription.dropped));
+      }
+      return ret;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long slowestCursor() {
+    long ret = head;
+    for (Subscription subscription : subscriptions) {
+      ret = Math.min(ret, subscription.cursor);
+    }
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void deliver(Subscription subscription) {
+    while (true) {
+      T event = null;
+      boolean advanced = false;
+      lock.lock();
+      try {
+        while (event == null) {
+          while (!subscription.closed && subscription.cursor == head) {
+            // filtered events free their slots too, and a blocked publisher must know it
+            if (advanced) {
+              consumed.signalAll();
+              advanced = false;
+            }
+            published.awaitUninterruptibly();
+          }
+          if (subscription.closed) {
+            return;
+          }
+          T next = (T) slots[(int) (subscription.cursor % slots.length)];
+          subscription.cursor++;
+          advanced = true;
+          if (subscription.filter.test(next)) {
+            event = next;
+            subscription.delivered++;
+          }
+        }
+        consumed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+        subscription.listener.accept(event);
+      } catch (RuntimeException e) {
+        onListenerError.accept(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.integratedmodelling.klab.nifi.CacheStatistics;
+
+/**
+ * A small thread-safe cache bounded both in size (least recently used entries go first) and in
+ * time (entries older than the time-to-live are dropped on access). Null values are never cached.
+ *
+ * <p>Loading happens outside the lock, so concurrent misses on the same key may both call the
+ * loader; the last value loaded wins.
+ */
+public class ExpiringLruCache<K, V> {
+
+  private static final class Entry<V> {
+    private final V value;
+    private final long created;
+
+    private Entry(V value, long created) {
+      this.value = value;
+      this.created = created;
+    }
+  }
+
+  private final int maxEntries;
+  private final long ttlNanos;
+  private final LinkedHashMap<K, Entry<V>> entries;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param maxEntries the maximum number of entries kept
+   * @param ttlMillis the time to live of each entry in milliseconds, or 0 for no expiration
+   */
+  public ExpiringLruCache(int maxEntries, long ttlMillis) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Cache size must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.ttlNanos = ttlMillis * 1_000_000L;
+    this.entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+            if (size() > ExpiringLruCache.this.maxEntries) {
+              evictions.increment();
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /** Return the cached value for the key, or null if absent or expired. */
+  public V get(K key) {
+    V ret = lookup(key);
+    if (ret == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return ret;
+  }
+
+  /** Return the cached value for the key, loading and caching it on a miss. */
+  public V get(K key, Function<? super K, ? extends V> loader) {
+    V ret = get(key);
+    if (ret == null) {
+      ret = loader.apply(key);
+      put(key, ret);
+    }
+    return ret;
+  }
+
+  public void put(K key, V value) {
+    if (value == null) {
+      return;
+    }
+    synchronized (entries) {
+      entries.put(key, new Entry<>(value, System.nanoTime()));
+    }
+  }
+
+  public void invalidate(K key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /** Drop all the expired entries. Expired entries are also dropped lazily when looked up. */
+  public void purgeExpired() {
+    if (ttlNanos <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    synchronized (entries) {
+      for (Iterator<Entry<V>> it = entries.values().iterator(); it.hasNext(); ) {
+        if (now - it.next().created > ttlNanos) {
+          it.remove();
+          evictions.increment();
+        }
+      }
+    }
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public CacheStatistics getStatistics() {
+    return new CacheStatistics(size(), hits.sum(), misses.sum(), evictions.sum());
+  }
+
+  private V lookup(K key) {
+    synchronized (entries) {
+      Entry<V> entry = entries.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (ttlNanos > 0 && System.nanoTime() - entry.created > ttlNanos) {
+        entries.remove(key);
+        evictions.increment();
+        return null;
+      }
+      return entry.value;
+    }
+  }
+}
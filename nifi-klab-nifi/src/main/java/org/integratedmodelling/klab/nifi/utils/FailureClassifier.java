@@ -0,0 +1,39 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import org.integratedmodelling.klab.api.exceptions.KlabAuthorizationException;
+import org.integratedmodelling.klab.nifi.DigitalTwinUnavailableException;
+import org.integratedmodelling.klab.nifi.SubmissionRejectedException;
+
+/**
+ * Tells the failures worth retrying as they are, such as network errors, timeouts and an
+ * overloaded or unavailable digital twin, from those that will fail again, such as invalid
+ * requests, semantics that cannot be resolved or missing authorization.
+ */
+public final class FailureClassifier {
+
+  private FailureClassifier() {}
+
+  /**
+   * Whether the failure is transient. The whole cause chain is inspected, as failures of
+   * submissions usually arrive wrapped in an execution or completion exception.
+   */
+  public static boolean isTransient(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (cause instanceof KlabAuthorizationException) {
+        return false;
+      }
+      if (cause instanceof IOException
+          || cause instanceof TimeoutException
+          || cause instanceof InterruptedException
+          || cause instanceof RejectedExecutionException
+          || cause instanceof SubmissionRejectedException
+          || cause instanceof DigitalTwinUnavailableException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,95 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.Locale;
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.integratedmodelling.klab.api.geometry.impl.GeometryImpl;
+import org.integratedmodelling.klab.nifi.CacheStatistics;
+
+/**
+ * Process-wide cache of the k.LAB geometries built from observation requests. Sensors tend to send
+ * the same few areas of interest over and over, and building a geometry (WKT parsing included) is
+ * a large part of the cost of each request, so all processors share one bounded cache keyed by the
+ * normalized space/time tuple of the request.
+ *
+ * <p>The same geometry instance is handed to every observation with an equivalent request, across
+ * threads and processors. This is safe because geometries are only read after they are built: the
+ * processors set them on new observations that are submitted to the remote runtime service, which
+ * gets its own copy over the wire, and the serializers only encode them. Callers must treat the
+ * returned geometry as read-only, and build their own with {@link GeometryImpl#builder()} when they
+ * need to change it.
+ */
+public final class GeometryCache {
+
+  public static final int MAX_ENTRIES = 512;
+
+  private record Key(
+      String shape, String sgrid, String proj, long tstart, long tend, String tunit, int tscope) {}
+
+  private static final ExpiringLruCache<Key, Geometry> CACHE =
+      new ExpiringLruCache<>(MAX_ENTRIES, 0);
+
+  private GeometryCache() {}
+
+  /**
+   * Return the geometry for the request, building it only if an equivalent one is not cached. The
+   * geometry is shared, so it must not be modified.
+   *
+   * @throws IllegalArgumentException if the time unit of the request is not known
+   */
+  public static Geometry get(KlabObservationNifiRequest.Geometry geometry) {
+    var space = geometry.getSpace();
+    var time = geometry.getTime();
+    var key =
+        new Key(
+            normalize(space.getShape()),
+            space.getSgrid().strip(),
+            space.getProj().strip(),
+            time.getTstart(),
+            time.getTend(),
+            time.getTunit().strip().toLowerCase(Locale.ROOT),
+            time.getTscope());
+    return CACHE.get(key, GeometryCache::build);
+  }
+
+  public static CacheStatistics getStatistics() {
+    return CACHE.getStatistics();
+  }
+
+  public static void clear() {
+    CACHE.invalidateAll();
+  }
+
+  private static Geometry build(Key key) {
+    return GeometryImpl.builder()
+        .space()
+        .shape(key.shape())
+        .resolution(key.sgrid())
+        .projection(key.proj())
+        .build()
+        .time()
+        .between(key.tstart(), key.tend())
+        .resolution(TemporalSplitter.resolutionType(key.tunit()), key.tscope())
+        .build()
+        .build();
+  }
+
+  /* Collapse runs of whitespace so that differently formatted WKT for the same shape share a key */
+  static String normalize(String wkt) {
+    var trimmed = wkt.strip();
+    var ret = new StringBuilder(trimmed.length());
+    boolean space = false;
+    for (int i = 0; i < trimmed.length(); i++) {
+      char c = trimmed.charAt(i);
+      if (Character.isWhitespace(c)) {
+        space = true;
+        continue;
+      }
+      if (space) {
+        ret.append(' ');
+        space = false;
+      }
+      ret.append(c);
+    }
+    return ret.toString();
+  }
+}
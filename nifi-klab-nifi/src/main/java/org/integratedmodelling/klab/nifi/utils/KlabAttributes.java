@@ -5,4 +5,12 @@ public class KlabAttributes {
   public static final String KLAB_URN = "klab.urn";
   public static final String KLAB_CONTEXT_PROJ = "EPSG:4326";
   public static final long KLAB_UNRESOLVED_OBS_ID = -1;
+  public static final String KLAB_TILE_COLUMN = "klab.tile.column";
+  public static final String KLAB_TILE_ROW = "klab.tile.row";
+  public static final String KLAB_TIME_START = "klab.time.start";
+  public static final String KLAB_TIME_END = "klab.time.end";
+  public static final String KLAB_REQUEST_FINGERPRINT = "klab.request.fingerprint";
+  public static final String KLAB_DEDUPLICATED = "klab.deduplicated";
+  public static final String KLAB_RETRY_COUNT = "klab.retry.count";
+  public static final String KLAB_RETRY_AFTER = "klab.retry.after";
 }
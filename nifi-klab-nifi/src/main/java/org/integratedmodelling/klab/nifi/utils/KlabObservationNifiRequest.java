@@ -29,6 +29,24 @@ public class KlabObservationNifiRequest {
     this.observationId = builder.observationId;
   }
 
+  /** Used by {@link KlabObservationNifiRequestCodec} to create already validated requests. */
+  KlabObservationNifiRequest(
+      Geometry geometry, String name, String semantics, String digitalTwin, long observationId) {
+    this.geometry = geometry;
+    this.name = name;
+    this.semantics = semantics;
+    this.digitalTwin = digitalTwin;
+    this.observationId = observationId;
+  }
+
+  /** This request for the observation with another id, e.g. as a processor actually submits it. */
+  public KlabObservationNifiRequest withObservationId(long observationId) {
+    if (observationId == this.observationId) {
+      return this;
+    }
+    return new KlabObservationNifiRequest(geometry, name, semantics, digitalTwin, observationId);
+  }
+
   /** Serialize this object to JSON */
   public String toJson() {
     Gson gson = new GsonBuilder().setPrettyPrinting().create();
@@ -116,6 +134,13 @@ public class KlabObservationNifiRequest {
         this.proj = builder.proj;
       }
 
+      /** Used by the codec; the shape is expected to be already prefixed by the projection. */
+      Space(String shape, String sgrid, String proj) {
+        this.shape = shape;
+        this.sgrid = sgrid;
+        this.proj = proj;
+      }
+
       /** Getters */
       public String getShape() {
         return shape;
@@ -197,6 +222,13 @@ public class KlabObservationNifiRequest {
         this.tscope = builder.tscope;
       }
 
+      Time(long tstart, long tend, String tunit, int tscope) {
+        this.tstart = tstart;
+        this.tend = tend;
+        this.tunit = tunit;
+        this.tscope = tscope;
+      }
+
       /** Getters */
       public long getTstart() {
         return tstart;
@@ -264,6 +296,11 @@ public class KlabObservationNifiRequest {
       this.time = builder.time;
     }
 
+    Geometry(Space space, Time time) {
+      this.space = space;
+      this.time = time;
+    }
+
     /** Getters */
     public Space getSpace() {
       return space;
@@ -0,0 +1,208 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.integratedmodelling.klab.nifi.utils.KlabAttributes.KLAB_UNRESOLVED_OBS_ID;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming JSON encoding and decoding of {@link KlabObservationNifiRequest}, shared by all the
+ * processors. Requests are read field by field with a {@link JsonReader} and written with a {@link
+ * JsonWriter}, without building an intermediate JSON tree or going through reflection.
+ *
+ * <p>The format is the one produced by {@link KlabObservationNifiRequest#toJson()}. Unknown fields
+ * are skipped, so a request can be embedded in a larger document. Missing optional fields take the
+ * same defaults as the request builders, and decoded requests are checked as the builders check
+ * them; in addition, a request must have a geometry with both space and time, as every processor
+ * building an observation from it requires them.
+ */
+public final class KlabObservationNifiRequestCodec {
+
+  private KlabObservationNifiRequestCodec() {}
+
+  /** Decode a UTF-8 encoded request. The stream is not closed. */
+  public static KlabObservationNifiRequest read(InputStream in)
+      throws IOException, KlabNifiException {
+    return read(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  public static KlabObservationNifiRequest read(Reader reader)
+      throws IOException, KlabNifiException {
+    return read(new JsonReader(reader));
+  }
+
+  /**
+   * Decode the request object at the current position of the reader, leaving the reader after its
+   * end.
+   */
+  public static KlabObservationNifiRequest read(JsonReader reader)
+      throws IOException, KlabNifiException {
+    KlabObservationNifiRequest.Geometry geometry = null;
+    String name = null;
+    String semantics = null;
+    String digitalTwin = null;
+    long observationId = KLAB_UNRESOLVED_OBS_ID;
+
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "geometry" -> geometry = readGeometry(reader);
+        case "name" -> name = reader.nextString();
+        case "semantics" -> semantics = reader.nextString();
+        case "digitalTwin" -> digitalTwin = reader.nextString();
+        case "observationId" -> observationId = reader.nextLong();
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+
+    if (name == null) {
+      throw new KlabNifiException("Submitted Observation must have a Name");
+    }
+    if (semantics == null) {
+      throw new KlabNifiException("Submitted Observation must have a Semantics");
+    }
+    if (geometry == null) {
+      throw new KlabNifiException("Submitted Observation must have a Geometry");
+    }
+    return new KlabObservationNifiRequest(geometry, name, semantics, digitalTwin, observationId);
+  }
+
+  private static KlabObservationNifiRequest.Geometry readGeometry(JsonReader reader)
+      throws IOException, KlabNifiException {
+    KlabObservationNifiRequest.Geometry.Space space = null;
+    KlabObservationNifiRequest.Geometry.Time time = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "space" -> space = readSpace(reader);
+        case "time" -> time = readTime(reader);
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (space == null) {
+      throw new KlabNifiException("Geometry must have a Space");
+    }
+    if (time == null) {
+      throw new KlabNifiException("Geometry must have a Time");
+    }
+    return new KlabObservationNifiRequest.Geometry(space, time);
+  }
+
+  private static KlabObservationNifiRequest.Geometry.Space readSpace(JsonReader reader)
+      throws IOException, KlabNifiException {
+    String shape = null;
+    String sgrid = "1.km";
+    String proj = "EPSG:4326";
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "shape" -> shape = reader.nextString();
+        case "sgrid" -> sgrid = reader.nextString();
+        case "proj" -> proj = reader.nextString();
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (shape == null) {
+      throw new KlabNifiException("Shape cannot be null");
+    }
+    return new KlabObservationNifiRequest.Geometry.Space(shape, sgrid, proj);
+  }
+
+  private static KlabObservationNifiRequest.Geometry.Time readTime(JsonReader reader)
+      throws IOException, KlabNifiException {
+    long tstart = 0;
+    long tend = 0;
+    String tunit = "year";
+    int tscope = 1;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String field = reader.nextName();
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        continue;
+      }
+      switch (field) {
+        case "tstart" -> tstart = reader.nextLong();
+        case "tend" -> tend = reader.nextLong();
+        case "tunit" -> tunit = reader.nextString();
+        case "tscope" -> tscope = reader.nextInt();
+        default -> reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (tstart > tend) {
+      throw new KlabNifiException("Start time can't be more than the end time");
+    }
+    return new KlabObservationNifiRequest.Geometry.Time(tstart, tend, tunit, tscope);
+  }
+
+  /** Encode the request as compact UTF-8 JSON. The stream is flushed but not closed. */
+  public static void write(KlabObservationNifiRequest request, OutputStream out)
+      throws IOException {
+    var writer =
+        new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+    write(request, writer);
+    writer.flush();
+  }
+
+  public static void write(KlabObservationNifiRequest request, JsonWriter writer)
+      throws IOException {
+    writer.beginObject();
+    var geometry = request.getGeometry();
+    if (geometry != null) {
+      writer.name("geometry").beginObject();
+      var space = geometry.getSpace();
+      if (space != null) {
+        writer.name("space").beginObject();
+        writer.name("shape").value(space.getShape());
+        writer.name("sgrid").value(space.getSgrid());
+        writer.name("proj").value(space.getProj());
+        writer.endObject();
+      }
+      var time = geometry.getTime();
+      if (time != null) {
+        writer.name("time").beginObject();
+        writer.name("tstart").value(time.getTstart());
+        writer.name("tend").value(time.getTend());
+        writer.name("tunit").value(time.getTunit());
+        writer.name("tscope").value(time.getTscope());
+        writer.endObject();
+      }
+      writer.endObject();
+    }
+    writer.name("name").value(request.getObservationName());
+    writer.name("semantics").value(request.getObservationSemantics());
+    if (request.getDigitalTwin() != null) {
+      writer.name("digitalTwin").value(request.getDigitalTwin());
+    }
+    writer.name("observationId").value(request.getObservationId());
+    writer.endObject();
+  }
+}
@@ -0,0 +1,139 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.integratedmodelling.common.utils.Utils;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+
+/**
+ * Writes resolved observations to FlowFile content. Apart from the legacy {@link Format#KLAB_JSON},
+ * every format streams the same fixed set of fields (see {@link #SCHEMA}) directly into the output
+ * stream, so downstream consumers can rely on a stable schema whatever the k.LAB version.
+ */
+public class ObservationSerializer {
+
+  public enum Format {
+    /** The full k.LAB serialization of the observation. */
+    KLAB_JSON("application/json"),
+    /** Compact JSON with the fields of {@link #SCHEMA}. */
+    JSON("application/json"),
+    /** An Avro data file with {@link #SCHEMA} embedded. */
+    AVRO("application/avro-binary"),
+    /** CBOR with the fields of {@link #SCHEMA}. */
+    CBOR("application/cbor");
+
+    private final String mimeType;
+
+    Format(String mimeType) {
+      this.mimeType = mimeType;
+    }
+
+    public String getMimeType() {
+      return mimeType;
+    }
+  }
+
+  /** The fields written by all formats but {@link Format#KLAB_JSON}. */
+  public static final Schema SCHEMA =
+      SchemaBuilder.record("Observation")
+          .namespace("org.integratedmodelling.klab")
+          .fields()
+          .requiredLong("id")
+          .optionalString("name")
+          .optionalString("urn")
+          .optionalString("type")
+          .optionalString("geometry")
+          .endRecord();
+
+  // The FlowFile stream is owned by the session, so generators must not close it
+  private static final JsonFactory JSON_FACTORY =
+      new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+  private static final JsonFactory CBOR_FACTORY =
+      new CBORFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private ObservationSerializer() {}
+
+  public static void write(Observation observation, Format format, OutputStream out)
+      throws IOException {
+    switch (format) {
+      case KLAB_JSON ->
+          out.write(Utils.Json.asString(observation).getBytes(StandardCharsets.UTF_8));
+      case JSON -> writeFields(observation, JSON_FACTORY, out);
+      case CBOR -> writeFields(observation, CBOR_FACTORY, out);
+      case AVRO -> writeAvro(observation, out);
+    }
+  }
+
+  /* Stream the schema fields through a Jackson generator, skipping the null ones */
+  private static void writeFields(Observation observation, JsonFactory factory, OutputStream out)
+      throws IOException {
+    try (JsonGenerator generator = factory.createGenerator(out)) {
+      generator.writeStartObject();
+      generator.writeNumberField("id", observation.getId());
+      writeField(generator, "name", observation.getName());
+      writeField(generator, "urn", observation.getUrn());
+      writeField(generator, "type", type(observation));
+      writeField(generator, "geometry", geometry(observation));
+      generator.writeEndObject();
+    }
+  }
+
+  private static void writeField(JsonGenerator generator, String name, String value)
+      throws IOException {
+    if (value != null) {
+      generator.writeStringField(name, value);
+    }
+  }
+
+  private static void writeAvro(Observation observation, OutputStream out) throws IOException {
+    GenericRecord record = new GenericData.Record(SCHEMA);
+    record.put("id", observation.getId());
+    record.put("name", observation.getName());
+    record.put("urn", observation.getUrn());
+    record.put("type", type(observation));
+    record.put("geometry", geometry(observation));
+    // Closing the writer releases its buffers, but must not close the FlowFile stream
+    try (DataFileWriter<GenericRecord> writer =
+        new DataFileWriter<>(new GenericDatumWriter<>(SCHEMA))) {
+      writer.create(SCHEMA, new NonClosingOutputStream(out));
+      writer.append(record);
+    }
+  }
+
+  /* Leaves the stream to the session that owns it, only flushing what was written on close */
+  private static final class NonClosingOutputStream extends FilterOutputStream {
+
+    NonClosingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+
+  private static String type(Observation observation) {
+    return observation.getType() == null ? null : observation.getType().toString();
+  }
+
+  private static String geometry(Observation observation) {
+    return observation.getGeometry() == null ? null : observation.getGeometry().encode();
+  }
+}
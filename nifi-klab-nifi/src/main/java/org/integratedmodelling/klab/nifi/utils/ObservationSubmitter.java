@@ -0,0 +1,289 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.integratedmodelling.klab.api.digitaltwin.DigitalTwin;
+import org.integratedmodelling.klab.api.knowledge.Observable;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
+import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.nifi.DigitalTwinUnavailableException;
+import org.integratedmodelling.klab.nifi.KlabController;
+import org.integratedmodelling.klab.nifi.SubmissionRejectedException;
+
+/**
+ * Submits the observation requests read from FlowFiles to their digital twins, and routes each
+ * FlowFile once its observation is resolved: the resolved observation as a child of the request,
+ * replayed requests answered from the {@link SubmissionCache}, and failures through the {@link
+ * RetryPolicy}. Created by the observation processors when they are scheduled, with the
+ * relationships to route to.
+ */
+public final class ObservationSubmitter {
+
+  /** A submitted request awaiting the resolution of its observation. */
+  public record Submission(
+      FlowFile flowFile,
+      String fingerprint,
+      String dtURL,
+      PhaseTimings timings,
+      CompletableFuture<Observation> future) {}
+
+  private final KlabController klabController;
+  private final ComponentLog logger;
+  private final SubmissionCache submissionCache;
+  private final RetryPolicy retryPolicy;
+  private final boolean timingAttributes;
+  private final Relationship success;
+  private final Relationship failure;
+  private final Relationship retry;
+  private final Relationship unavailable;
+
+  public ObservationSubmitter(
+      ProcessContext context,
+      KlabController klabController,
+      ComponentLog logger,
+      Relationship success,
+      Relationship failure,
+      Relationship retry,
+      Relationship unavailable) {
+    this.klabController = klabController;
+    this.logger = logger;
+    this.submissionCache = SubmissionCache.create(context);
+    this.retryPolicy = RetryPolicy.create(context);
+    this.timingAttributes = context.getProperty(PhaseTimings.TIMING_ATTRIBUTES).asBoolean();
+    this.success = success;
+    this.failure = failure;
+    this.retry = retry;
+    this.unavailable = unavailable;
+  }
+
+  /**
+   * Submit the requests of a batch without waiting on any of them, so that their resolutions run
+   * concurrently. The FlowFiles that are not submitted are routed or penalized right away.
+   *
+   * @param asSubmitted turns each request into the one actually submitted, and fingerprinted
+   * @return the submissions, in the order of the FlowFiles
+   */
+  public List<Submission> submit(
+      ProcessSession session,
+      List<FlowFile> flowfiles,
+      UnaryOperator<KlabObservationNifiRequest> asSubmitted) {
+    List<Submission> submissions = new ArrayList<>(flowfiles.size());
+    Map<String, ContextScope> scopes = new HashMap<>();
+    Set<String> saturated = new HashSet<>();
+
+    for (FlowFile flowfile : flowfiles) {
+      if (!retryPolicy.isDue(flowfile)) {
+        // a retry looping back before its backoff has elapsed
+        session.transfer(session.penalize(flowfile));
+        continue;
+      }
+      PhaseTimings timings = new PhaseTimings();
+      KlabObservationNifiRequest request = read(session, flowfile, timings);
+      if (request == null) {
+        logger.error("The Flowfile doesn't contain a valid observation request");
+        session.transfer(flowfile, failure);
+        continue;
+      }
+      request = asSubmitted.apply(request);
+
+      String dtURL = request.getDigitalTwin();
+      if (dtURL == null || dtURL.isEmpty()) {
+        logger.error("The Flowfile doesn't have the DT URL");
+        session.transfer(flowfile, failure);
+        continue;
+      }
+
+      String fingerprint = RequestFingerprint.of(request);
+      if (submissionCache != null
+          && transferDeduplicated(session, flowfile, fingerprint, dtURL, timings)) {
+        continue;
+      }
+
+      if (saturated.contains(dtURL)) {
+        // the DT already rejected a submission in this batch, so don't wait for it again
+        session.transfer(session.penalize(flowfile));
+        continue;
+      }
+
+      try {
+        ContextScope contextScope = scopes.get(dtURL);
+        if (contextScope == null) {
+          // The controller connects on first use, with concurrent tasks sharing one connection
+          contextScope = klabController.getContextScope(dtURL);
+          if (contextScope == null) {
+            logger.error("Unable to connect to the Digital Twin " + dtURL);
+            session.transfer(flowfile, failure);
+            continue;
+          }
+          scopes.put(dtURL, contextScope);
+        }
+        Observation observation = buildObservation(klabController, contextScope, request, timings);
+        // Shares the resolution of an identical request already in flight, if any
+        CompletableFuture<Observation> future =
+            timings.timeCompletion(
+                PhaseTimings.Phase.SUBMIT,
+                klabController.submitObservation(dtURL, fingerprint, contextScope, observation));
+        submissions.add(new Submission(flowfile, fingerprint, dtURL, timings, future));
+      } catch (SubmissionRejectedException e) {
+        logger.debug("{}, penalizing the FlowFile", e.getMessage());
+        saturated.add(dtURL);
+        session.transfer(session.penalize(flowfile));
+      } catch (DigitalTwinUnavailableException e) {
+        logger.debug(e.getMessage());
+        session.transfer(flowfile, unavailable);
+      } catch (Exception e) {
+        logger.error("Error in processing Observation: ", e);
+        retryPolicy.transferFailure(session, flowfile, e, retry, failure);
+      }
+    }
+    return submissions;
+  }
+
+  /**
+   * Route a submission once its observation is resolved, waiting for the resolution if it has not
+   * completed yet. The FlowFile of the submission must belong to the session.
+   */
+  public void transfer(ProcessSession session, Submission submission) {
+    try {
+      transferResolved(session, submission, submission.future().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      retryPolicy.transferFailure(session, submission.flowFile(), e, retry, failure);
+    } catch (Exception e) {
+      logger.error("Error in processing Observation: ", e);
+      retryPolicy.transferFailure(session, submission.flowFile(), e, retry, failure);
+    }
+  }
+
+  /**
+   * The unresolved observation for a request, to submit to the digital twin of the scope. The
+   * time spent resolving the observable and building the geometry is recorded in the timings.
+   */
+  public static Observation buildObservation(
+      KlabController klabController,
+      ContextScope contextScope,
+      KlabObservationNifiRequest req,
+      PhaseTimings timings) {
+    // The Observable from the Semantics URN, cached by the controller across requests
+    long start = PhaseTimings.start();
+    Observable observable =
+        klabController.resolveObservable(contextScope, req.getObservationSemantics());
+    timings.record(PhaseTimings.Phase.RESOLVE_OBSERVABLE, start);
+
+    ObservationImpl obs = DigitalTwin.createObservation(contextScope, observable);
+    // Built once per distinct space/time request and shared across processors
+    start = PhaseTimings.start();
+    obs.setGeometry(GeometryCache.get(req.getGeometry()));
+    timings.record(PhaseTimings.Phase.BUILD_GEOMETRY, start);
+    obs.setName(req.getObservationName());
+    obs.setUrn(req.getObservationSemantics());
+    obs.setId(req.getObservationId()); // Unresolved Observation ID is -1
+    return obs;
+  }
+
+  private KlabObservationNifiRequest read(
+      ProcessSession session, FlowFile flowfile, PhaseTimings timings) {
+    AtomicReference<KlabObservationNifiRequest> req = new AtomicReference<>();
+    long start = PhaseTimings.start();
+    session.read(
+        flowfile,
+        in -> {
+          try {
+            req.set(KlabObservationNifiRequestCodec.read(in));
+          } catch (Exception e) {
+            logger.error("Error reading JSON", e);
+          }
+        });
+    timings.record(PhaseTimings.Phase.PARSE, start);
+    return req.get();
+  }
+
+  /*
+  Answer a replayed request with the observation resolved for an identical one, if it is still
+  remembered. Returns false when the request must be submitted.
+   */
+  private boolean transferDeduplicated(
+      ProcessSession session,
+      FlowFile flowfile,
+      String fingerprint,
+      String dtURL,
+      PhaseTimings timings) {
+    SubmissionCache.Resolution resolution;
+    try {
+      resolution = submissionCache.get(fingerprint);
+    } catch (IOException e) {
+      logger.warn("Deduplication cache not available, submitting the observation", e);
+      return false;
+    }
+    if (resolution == null) {
+      return false;
+    }
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("observation.id", resolution.observationId());
+    attributes.put("observation.type", resolution.observationType());
+    attributes.put(KlabAttributes.KLAB_REQUEST_FINGERPRINT, fingerprint);
+    attributes.put(KlabAttributes.KLAB_DEDUPLICATED, "true");
+    timings.report(session, klabController, dtURL, timingAttributes ? attributes : null);
+    logger.debug("Observation request " + fingerprint + " already resolved, not submitting");
+    transferChild(session, flowfile, attributes);
+    return true;
+  }
+
+  private void transferResolved(
+      ProcessSession session, Submission submission, Observation resolvedObservation) {
+    String fingerprint = submission.fingerprint();
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("observation.id", resolvedObservation.getId() + "");
+    // TODO make sure that the resolved observation is valid. E.g. id is not -1
+    attributes.put("observation.type", resolvedObservation.getType().toString());
+    attributes.put(KlabAttributes.KLAB_REQUEST_FINGERPRINT, fingerprint);
+    if (submissionCache != null) {
+      remember(fingerprint, attributes);
+    }
+    submission
+        .timings()
+        .report(session, klabController, submission.dtURL(), timingAttributes ? attributes : null);
+    logger.info("Success Flowfile being sent to Success Relation..");
+    transferChild(session, submission.flowFile(), attributes);
+  }
+
+  /*
+  The observation is routed as a child of the request, inheriting its attributes (e.g. those of a
+  tile or time slice to merge downstream) and its lineage. Created last, so that a failure before
+  leaves no orphan FlowFile in the session.
+   */
+  private void transferChild(
+      ProcessSession session, FlowFile flowfile, Map<String, String> attributes) {
+    FlowFile successFlowFile = session.putAllAttributes(session.create(flowfile), attributes);
+    session.remove(flowfile);
+    session.transfer(successFlowFile, success);
+  }
+
+  /* Only observations actually resolved are reused for later identical requests */
+  private void remember(String fingerprint, Map<String, String> attributes) {
+    String id = attributes.get("observation.id");
+    if (String.valueOf(KlabAttributes.KLAB_UNRESOLVED_OBS_ID).equals(id)) {
+      return;
+    }
+    try {
+      submissionCache.put(
+          fingerprint, new SubmissionCache.Resolution(id, attributes.get("observation.type")));
+    } catch (IOException e) {
+      logger.warn("Could not remember the resolution of request " + fingerprint, e);
+    }
+  }
+}
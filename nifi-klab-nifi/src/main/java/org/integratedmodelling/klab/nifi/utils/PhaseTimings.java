@@ -0,0 +1,100 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.integratedmodelling.klab.nifi.KlabController;
+
+/**
+ * The time spent by one request in each phase of a k.LAB processor. Timing only costs a couple of
+ * {@link System#nanoTime()} calls per phase; the durations are reported once the request is
+ * routed, as NiFi counters, as latency histograms in the controller and optionally as FlowFile
+ * attributes.
+ */
+public final class PhaseTimings {
+
+  public enum Phase {
+    PARSE("parse"),
+    RESOLVE_OBSERVABLE("resolveObservable"),
+    RESOLVE_URN("resolveUrn"),
+    BUILD_GEOMETRY("buildGeometry"),
+    /** From the submission to the resolution of the observation. */
+    SUBMIT("submit"),
+    WRITE("write");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  public static final PropertyDescriptor TIMING_ATTRIBUTES =
+      new PropertyDescriptor.Builder()
+          .name("timing-attributes")
+          .displayName("Write Timing Attributes")
+          .description(
+              "Whether the time spent in each processing phase is written to the output FlowFiles"
+                  + " as klab.timing.<phase>.micros attributes. The timings are always reported as"
+                  + " counters and to the controller service.")
+          .required(true)
+          .allowableValues("true", "false")
+          .defaultValue("false")
+          .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+          .build();
+
+  private static final Phase[] PHASES = Phase.values();
+
+  // Only written and read by one thread at a time; see timeCompletion for the asynchronous phase
+  private final long[] nanos = new long[PHASES.length];
+  private final boolean[] timed = new boolean[PHASES.length];
+
+  /** The start of a phase, to pass to {@link #record(Phase, long)} at its end. */
+  public static long start() {
+    return System.nanoTime();
+  }
+
+  public void record(Phase phase, long start) {
+    nanos[phase.ordinal()] += System.nanoTime() - start;
+    timed[phase.ordinal()] = true;
+  }
+
+  /**
+   * Time a phase lasting until the future completes.
+   *
+   * @return a future completing after the duration is recorded; wait on this one before reporting
+   */
+  public <T> CompletableFuture<T> timeCompletion(Phase phase, CompletableFuture<T> future) {
+    long start = start();
+    return future.whenComplete((result, error) -> record(phase, start));
+  }
+
+  /**
+   * Report the recorded phases as counters of the session and to the controller, and add them to
+   * the attributes unless these are null.
+   */
+  public void report(
+      ProcessSession session,
+      KlabController controller,
+      String dtURL,
+      Map<String, String> attributes) {
+    for (Phase phase : PHASES) {
+      if (!timed[phase.ordinal()]) {
+        continue;
+      }
+      long duration = nanos[phase.ordinal()];
+      session.adjustCounter("klab." + phase.label + ".micros", duration / 1000, false);
+      session.adjustCounter("klab." + phase.label + ".count", 1, false);
+      controller.recordLatency(dtURL, phase.label, duration);
+      if (attributes != null) {
+        attributes.put("klab.timing." + phase.label + ".micros", String.valueOf(duration / 1000));
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * The fingerprint of an observation request: a SHA-256 hash of its canonical form, equal for all
+ * the requests asking the same digital twin for the same observation, whatever the formatting of
+ * their JSON or of the WKT shape.
+ */
+public final class RequestFingerprint {
+
+  private static final char SEPARATOR = '\u0000';
+
+  private RequestFingerprint() {}
+
+  public static String of(KlabObservationNifiRequest request) {
+    var canonical = new StringBuilder(256);
+    append(canonical, request.getDigitalTwin());
+    append(canonical, request.getObservationSemantics().strip());
+    append(canonical, request.getObservationName());
+    append(canonical, request.getObservationId());
+    var geometry = request.getGeometry();
+    if (geometry != null && geometry.getSpace() != null) {
+      var space = geometry.getSpace();
+      append(canonical, "space");
+      append(canonical, GeometryCache.normalize(space.getShape()));
+      append(canonical, strip(space.getSgrid()));
+      append(canonical, strip(space.getProj()));
+    }
+    if (geometry != null && geometry.getTime() != null) {
+      var time = geometry.getTime();
+      append(canonical, "time");
+      append(canonical, time.getTstart());
+      append(canonical, time.getTend());
+      append(canonical, strip(time.getTunit()).toLowerCase(Locale.ROOT));
+      append(canonical, time.getTscope());
+    }
+    byte[] hash = sha256().digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().formatHex(hash);
+  }
+
+  private static void append(StringBuilder canonical, Object value) {
+    canonical.append(value == null ? "" : value).append(SEPARATOR);
+  }
+
+  private static String strip(String value) {
+    return value == null ? "" : value.strip();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
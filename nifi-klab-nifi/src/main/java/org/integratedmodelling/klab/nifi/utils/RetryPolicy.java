@@ -0,0 +1,143 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.util.StandardValidators;
+
+/**
+ * Retries of the requests failing for a transient reason, according to the {@link
+ * FailureClassifier}. A retried FlowFile carries the number of retries made in {@link
+ * KlabAttributes#KLAB_RETRY_COUNT} and the time before which it must not be submitted again in
+ * {@link KlabAttributes#KLAB_RETRY_AFTER}. The delay doubles with each retry, with jitter so that
+ * requests failed together are not retried together. NiFi only penalizes FlowFiles for the fixed
+ * penalty duration of the processor, so processors hold back a FlowFile arriving before its retry
+ * time by penalizing it again.
+ */
+public final class RetryPolicy {
+
+  public static final PropertyDescriptor MAX_ATTEMPTS =
+      new PropertyDescriptor.Builder()
+          .name("max-attempts")
+          .displayName("Maximum Attempts")
+          .description(
+              "How many times a request failing for a transient reason is attempted, the first"
+                  + " included, before it is routed to failure. Transient failures are routed to"
+                  + " retry until then; 1 routes every failure to failure.")
+          .required(true)
+          .defaultValue("3")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor INITIAL_BACKOFF =
+      new PropertyDescriptor.Builder()
+          .name("retry-initial-backoff")
+          .displayName("Initial Retry Backoff")
+          .description(
+              "The delay before the first retry of a request. It doubles with each further retry,"
+                  + " and half of it is randomized.")
+          .required(true)
+          .defaultValue("5 sec")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  public static final PropertyDescriptor MAX_BACKOFF =
+      new PropertyDescriptor.Builder()
+          .name("retry-max-backoff")
+          .displayName("Maximum Retry Backoff")
+          .description("The longest delay before a retry, however many retries were made.")
+          .required(true)
+          .defaultValue("5 min")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .build();
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = unit.toMillis(initialBackoff);
+    this.maxBackoffMillis = Math.max(initialBackoffMillis, unit.toMillis(maxBackoff));
+  }
+
+  public static RetryPolicy create(ProcessContext context) {
+    return new RetryPolicy(
+        context.getProperty(MAX_ATTEMPTS).asInteger(),
+        context.getProperty(INITIAL_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+        context.getProperty(MAX_BACKOFF).asTimePeriod(TimeUnit.MILLISECONDS),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Whether a FlowFile may be processed now, i.e. it is not a retry arriving before its time. */
+  public boolean isDue(FlowFile flowFile) {
+    String after = flowFile.getAttribute(KlabAttributes.KLAB_RETRY_AFTER);
+    try {
+      return after == null || Long.parseLong(after) <= System.currentTimeMillis();
+    } catch (NumberFormatException e) {
+      return true;
+    }
+  }
+
+  /**
+   * The retry attributes for another attempt of a request that failed with the passed error.
+   *
+   * @param attributes the attributes of the failed request
+   * @return the attributes to add, or null if the request must not be retried
+   */
+  public Map<String, String> retry(Map<String, String> attributes, Throwable error) {
+    int retries = retries(attributes);
+    if (error == null || retries + 1 >= maxAttempts || !FailureClassifier.isTransient(error)) {
+      return null;
+    }
+    long retryAfter = System.currentTimeMillis() + backoffMillis(retries + 1);
+    return Map.of(
+        KlabAttributes.KLAB_RETRY_COUNT, String.valueOf(retries + 1),
+        KlabAttributes.KLAB_RETRY_AFTER, String.valueOf(retryAfter));
+  }
+
+  /**
+   * Route a failed request to the retry relationship, penalized, if it can be retried, and to the
+   * failure relationship otherwise.
+   *
+   * @return whether the request is retried
+   */
+  public boolean transferFailure(
+      ProcessSession session,
+      FlowFile flowFile,
+      Throwable error,
+      Relationship retry,
+      Relationship failure) {
+    Map<String, String> attributes = retry(flowFile.getAttributes(), error);
+    if (attributes == null) {
+      session.transfer(flowFile, failure);
+      return false;
+    }
+    session.transfer(session.penalize(session.putAllAttributes(flowFile, attributes)), retry);
+    return true;
+  }
+
+  /* Exponential in the number of the retry, capped; the upper half of the delay is random */
+  long backoffMillis(int retry) {
+    long backoff = initialBackoffMillis << Math.min(retry - 1, 30);
+    if (backoff <= 0 || backoff > maxBackoffMillis) {
+      backoff = maxBackoffMillis;
+    }
+    long half = backoff / 2;
+    return half + ThreadLocalRandom.current().nextLong(backoff - half + 1);
+  }
+
+  private static int retries(Map<String, String> attributes) {
+    String count = attributes.get(KlabAttributes.KLAB_RETRY_COUNT);
+    try {
+      return count == null ? 0 : Math.max(0, Integer.parseInt(count));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
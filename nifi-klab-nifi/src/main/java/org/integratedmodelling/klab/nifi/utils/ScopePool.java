@@ -0,0 +1,180 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import org.integratedmodelling.klab.api.scope.Scope;
+import org.integratedmodelling.klab.nifi.CacheStatistics;
+
+/**
+ * The scopes connected to each digital twin, keyed by DT URL. The pool is capped in size, dropping
+ * the least recently used scope when full, and scopes that have not been used for longer than the
+ * idle timeout are dropped by {@link #evictIdle()}. Every scope leaving the pool is passed to the
+ * eviction callback, which is expected to release it. Scopes in use between {@link #acquire} and
+ * {@link #release} are never idle, and one leaving the pool while in use is passed to the callback
+ * only once its last user releases it.
+ */
+public class ScopePool {
+
+  private static final class PooledScope {
+    private final Scope scope;
+    private long lastAccess;
+
+    private PooledScope(Scope scope) {
+      this.scope = scope;
+      this.lastAccess = System.nanoTime();
+    }
+  }
+
+  private final int maxEntries;
+  private final long idleNanos;
+  private final Consumer<Scope> onEvict;
+  private final LinkedHashMap<String, PooledScope> scopes = new LinkedHashMap<>(16, 0.75f, true);
+  /* The users of each scope in use, pooled or not, and the scopes left the pool while in use */
+  private final IdentityHashMap<Scope, Integer> users = new IdentityHashMap<>();
+  private final Set<Scope> retired = Collections.newSetFromMap(new IdentityHashMap<>());
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param maxEntries the maximum number of scopes kept
+   * @param idleMillis how long an unused scope is kept, or 0 to keep it until evicted by size
+   * @param onEvict called outside the pool lock for each scope that is evicted or cleared
+   */
+  public ScopePool(int maxEntries, long idleMillis, Consumer<Scope> onEvict) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Scope pool size must be positive");
+    }
+    this.maxEntries = maxEntries;
+    this.idleNanos = idleMillis * 1_000_000L;
+    this.onEvict = onEvict;
+  }
+
+  /** Return the scope for the DT and mark it as used, or null if the DT is not in the pool. */
+  public Scope get(String dtUrl) {
+    synchronized (scopes) {
+      PooledScope pooled = scopes.get(dtUrl);
+      if (pooled == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+      pooled.lastAccess = System.nanoTime();
+      return pooled.scope;
+    }
+  }
+
+  public boolean contains(String dtUrl) {
+    synchronized (scopes) {
+      return scopes.containsKey(dtUrl);
+    }
+  }
+
+  /**
+   * Add the scope for the DT unless one is already pooled, evicting the least recently used scope
+   * if the pool is full.
+   *
+   * @return the scope now pooled for the DT, which is the existing one if there was one
+   */
+  public Scope putIfAbsent(String dtUrl, Scope scope) {
+    List<Scope> evicted = new ArrayList<>();
+    Scope ret;
+    synchronized (scopes) {
+      PooledScope existing = scopes.get(dtUrl);
+      if (existing != null) {
+        existing.lastAccess = System.nanoTime();
+        ret = existing.scope;
+      } else {
+        scopes.put(dtUrl, new PooledScope(scope));
+        ret = scope;
+        Iterator<PooledScope> eldest = scopes.values().iterator();
+        while (scopes.size() > maxEntries) {
+          retire(eldest.next().scope, evicted);
+          eldest.remove();
+          evictions++;
+        }
+      }
+    }
+    evicted.forEach(onEvict);
+    return ret;
+  }
+
+  /** Drop the scopes that have been idle for longer than the idle timeout. */
+  public void evictIdle() {
+    if (idleNanos <= 0) {
+      return;
+    }
+    List<Scope> evicted = new ArrayList<>();
+    long now = System.nanoTime();
+    synchronized (scopes) {
+      for (Iterator<PooledScope> it = scopes.values().iterator(); it.hasNext(); ) {
+        PooledScope pooled = it.next();
+        if (now - pooled.lastAccess > idleNanos && !users.containsKey(pooled.scope)) {
+          evicted.add(pooled.scope);
+          it.remove();
+          evictions++;
+        }
+      }
+    }
+    evicted.forEach(onEvict);
+  }
+
+  /** Remove all the scopes, passing each to the eviction callback. */
+  public void clear() {
+    List<Scope> evicted = new ArrayList<>();
+    synchronized (scopes) {
+      scopes.values().forEach(pooled -> retire(pooled.scope, evicted));
+      scopes.clear();
+    }
+    evicted.forEach(onEvict);
+  }
+
+  /** Mark the scope as in use, e.g. by a submission in flight, until {@link #release}d. */
+  public void acquire(Scope scope) {
+    synchronized (scopes) {
+      users.merge(scope, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Release a use of the scope, passing it to the eviction callback if it left the pool while in
+   * use and this was its last user.
+   */
+  public void release(Scope scope) {
+    boolean evicted;
+    synchronized (scopes) {
+      Integer remaining =
+          users.computeIfPresent(scope, (s, count) -> count == 1 ? null : count - 1);
+      evicted = remaining == null && retired.remove(scope);
+    }
+    if (evicted) {
+      onEvict.accept(scope);
+    }
+  }
+
+  /* Called with the lock held for a scope leaving the pool, deferring its release while in use */
+  private void retire(Scope scope, List<Scope> evicted) {
+    if (users.containsKey(scope)) {
+      retired.add(scope);
+    } else {
+      evicted.add(scope);
+    }
+  }
+
+  public CacheStatistics getStatistics() {
+    synchronized (scopes) {
+      return new CacheStatistics(scopes.size(), hits, misses, evictions);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getStatistics().toString();
+  }
+}
@@ -0,0 +1,99 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.util.PolygonExtracter;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+
+/**
+ * Splits the space of an observation request into a grid of tiles over the bounding box of its
+ * shape. Each tile is the polygonal part of the intersection of the shape with one grid cell, so
+ * the tiles cover exactly the original shape; cells that do not overlap the shape with a positive
+ * area are dropped.
+ */
+public final class SpatialTiler {
+
+  /** One tile of a request, with its position in the grid. */
+  public record Tile(int column, int row, KlabObservationNifiRequest request) {}
+
+  private SpatialTiler() {}
+
+  /**
+   * Tile the request into at most {@code columns} x {@code rows} requests, numbered row by row
+   * starting from the lower left corner. Tiles keep the time, semantics and digital twin of the
+   * request; their name is suffixed with the column and row. A request without geometry is
+   * returned as a single tile.
+   */
+  public static List<Tile> tile(KlabObservationNifiRequest request, int columns, int rows)
+      throws KlabNifiException {
+    if (columns <= 0 || rows <= 0) {
+      throw new IllegalArgumentException("The tile grid must have at least one column and row");
+    }
+    var geometry = request.getGeometry();
+    if (geometry == null || (columns == 1 && rows == 1)) {
+      return List.of(new Tile(0, 0, request));
+    }
+
+    // The shape is prefixed by its projection, e.g. "EPSG:4326 POLYGON((...))"
+    String shape = geometry.getSpace().getShape().strip();
+    String prefix = "";
+    int separator = shape.indexOf(' ');
+    if (separator > 0 && shape.substring(0, separator).indexOf(':') > 0) {
+      prefix = shape.substring(0, separator + 1);
+      shape = shape.substring(separator + 1);
+    }
+
+    Geometry area;
+    try {
+      area = new WKTReader().read(shape);
+    } catch (ParseException e) {
+      throw new KlabNifiException("Invalid WKT String: " + e.getMessage());
+    }
+
+    Envelope bounds = area.getEnvelopeInternal();
+    double width = bounds.getWidth() / columns;
+    double height = bounds.getHeight() / rows;
+    GeometryFactory factory = area.getFactory();
+    WKTWriter writer = new WKTWriter();
+    List<Tile> ret = new ArrayList<>(columns * rows);
+
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < columns; column++) {
+        // the last cell of each axis closes on the bounds to avoid rounding gaps
+        double minX = bounds.getMinX() + column * width;
+        double maxX = column == columns - 1 ? bounds.getMaxX() : minX + width;
+        double minY = bounds.getMinY() + row * height;
+        double maxY = row == rows - 1 ? bounds.getMaxY() : minY + height;
+        Geometry cell = factory.toGeometry(new Envelope(minX, maxX, minY, maxY));
+        // clipping a concave shape can leave lines or points along the cell edges, which are not
+        // part of the area and not accepted as a shape by k.LAB
+        Geometry part =
+            factory.buildGeometry(PolygonExtracter.getPolygons(area.intersection(cell)));
+        if (part.isEmpty() || part.getArea() <= 0) {
+          continue;
+        }
+        var space =
+            new KlabObservationNifiRequest.Geometry.Space(
+                prefix + writer.write(part),
+                geometry.getSpace().getSgrid(),
+                geometry.getSpace().getProj());
+        ret.add(
+            new Tile(
+                column,
+                row,
+                new KlabObservationNifiRequest(
+                    new KlabObservationNifiRequest.Geometry(space, geometry.getTime()),
+                    request.getObservationName() + "_" + column + "_" + row,
+                    request.getObservationSemantics(),
+                    request.getDigitalTwin(),
+                    request.getObservationId())));
+      }
+    }
+    return ret;
+  }
+}
@@ -0,0 +1,179 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+/**
+ * Remembers the observations resolved for each request {@link RequestFingerprint}, so that
+ * replayed requests can be answered without submitting them to the digital twin again. The
+ * entries live either in a bounded cache local to the processor or in a NiFi {@link
+ * DistributedMapCacheClient} shared across processors and nodes.
+ */
+public abstract class SubmissionCache {
+
+  /** What a replayed request is answered with. */
+  public record Resolution(String observationId, String observationType) {}
+
+  public static final AllowableValue DEDUPLICATION_NONE =
+      new AllowableValue("none", "None", "Every request is submitted to the digital twin.");
+
+  public static final AllowableValue DEDUPLICATION_LOCAL =
+      new AllowableValue(
+          "local",
+          "Local",
+          "Resolutions are remembered in memory by each processor, and lost when it is stopped.");
+
+  public static final AllowableValue DEDUPLICATION_DISTRIBUTED =
+      new AllowableValue(
+          "distributed",
+          "Distributed",
+          "Resolutions are remembered in a Distributed Map Cache, shared across processors and"
+              + " cluster nodes.");
+
+  public static final PropertyDescriptor DEDUPLICATION =
+      new PropertyDescriptor.Builder()
+          .name("deduplication")
+          .displayName("Deduplication")
+          .description(
+              "Whether requests identical to one already resolved (same digital twin, semantics,"
+                  + " name and geometry) are answered with the previous observation instead of"
+                  + " being submitted again.")
+          .required(true)
+          .allowableValues(DEDUPLICATION_NONE, DEDUPLICATION_LOCAL, DEDUPLICATION_DISTRIBUTED)
+          .defaultValue(DEDUPLICATION_NONE.getValue())
+          .build();
+
+  public static final PropertyDescriptor DEDUPLICATION_TTL =
+      new PropertyDescriptor.Builder()
+          .name("deduplication-ttl")
+          .displayName("Deduplication Time to Live")
+          .description("How long a resolved observation is reused for identical requests.")
+          .required(true)
+          .defaultValue("10 min")
+          .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+          .dependsOn(DEDUPLICATION, DEDUPLICATION_LOCAL, DEDUPLICATION_DISTRIBUTED)
+          .build();
+
+  public static final PropertyDescriptor DEDUPLICATION_CACHE_SIZE =
+      new PropertyDescriptor.Builder()
+          .name("deduplication-cache-size")
+          .displayName("Deduplication Cache Size")
+          .description("The maximum number of resolutions remembered in memory.")
+          .required(true)
+          .defaultValue("10000")
+          .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+          .dependsOn(DEDUPLICATION, DEDUPLICATION_LOCAL)
+          .build();
+
+  public static final PropertyDescriptor DISTRIBUTED_CACHE =
+      new PropertyDescriptor.Builder()
+          .name("deduplication-distributed-cache")
+          .displayName("Distributed Map Cache Client")
+          .description("The cache shared by the processors deduplicating requests.")
+          .required(true)
+          .identifiesControllerService(DistributedMapCacheClient.class)
+          .dependsOn(DEDUPLICATION, DEDUPLICATION_DISTRIBUTED)
+          .build();
+
+  /**
+   * Create the cache configured by the {@link #DEDUPLICATION} properties.
+   *
+   * @return null if deduplication is disabled
+   */
+  public static SubmissionCache create(ProcessContext context) {
+    String strategy = context.getProperty(DEDUPLICATION).getValue();
+    if (DEDUPLICATION_NONE.getValue().equals(strategy)) {
+      return null;
+    }
+    long ttl = context.getProperty(DEDUPLICATION_TTL).asTimePeriod(TimeUnit.MILLISECONDS);
+    if (DEDUPLICATION_LOCAL.getValue().equals(strategy)) {
+      return new Local(context.getProperty(DEDUPLICATION_CACHE_SIZE).asInteger(), ttl);
+    }
+    return new Distributed(
+        context.getProperty(DISTRIBUTED_CACHE).asControllerService(DistributedMapCacheClient.class),
+        ttl);
+  }
+
+  /** Return the resolution of an identical request, or null if none is known or it expired. */
+  public abstract Resolution get(String fingerprint) throws IOException;
+
+  public abstract void put(String fingerprint, Resolution resolution) throws IOException;
+
+  private static final class Local extends SubmissionCache {
+    private final ExpiringLruCache<String, Resolution> cache;
+
+    private Local(int maxEntries, long ttlMillis) {
+      this.cache = new ExpiringLruCache<>(maxEntries, ttlMillis);
+    }
+
+    @Override
+    public Resolution get(String fingerprint) {
+      return cache.get(fingerprint);
+    }
+
+    @Override
+    public void put(String fingerprint, Resolution resolution) {
+      cache.put(fingerprint, resolution);
+    }
+  }
+
+  /*
+  The map cache has no expiration of its own, so each value carries the time it was stored at:
+  "<millis>\n<observation id>\n<observation type>".
+   */
+  private static final class Distributed extends SubmissionCache {
+    private static final Serializer<String> KEY_SERIALIZER =
+        (key, out) -> out.write(("klab.observation." + key).getBytes(StandardCharsets.UTF_8));
+    private static final Serializer<String> VALUE_SERIALIZER =
+        (value, out) -> out.write(value.getBytes(StandardCharsets.UTF_8));
+    private static final Deserializer<String> VALUE_DESERIALIZER =
+        bytes ->
+            bytes == null || bytes.length == 0 ? null : new String(bytes, StandardCharsets.UTF_8);
+
+    private final DistributedMapCacheClient client;
+    private final long ttlMillis;
+
+    private Distributed(DistributedMapCacheClient client, long ttlMillis) {
+      this.client = client;
+      this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public Resolution get(String fingerprint) throws IOException {
+      String value = client.get(fingerprint, KEY_SERIALIZER, VALUE_DESERIALIZER);
+      if (value == null) {
+        return null;
+      }
+      String[] fields = value.split("\n", 3);
+      try {
+        if (fields.length < 3
+            || System.currentTimeMillis() - Long.parseLong(fields[0]) > ttlMillis) {
+          return null;
+        }
+      } catch (NumberFormatException e) {
+        // not written by this class
+        return null;
+      }
+      return new Resolution(fields[1], fields[2]);
+    }
+
+    @Override
+    public void put(String fingerprint, Resolution resolution) throws IOException {
+      String value =
+          System.currentTimeMillis()
+              + "\n"
+              + resolution.observationId()
+              + "\n"
+              + resolution.observationType();
+      client.put(fingerprint, value, KEY_SERIALIZER, VALUE_SERIALIZER);
+    }
+  }
+}
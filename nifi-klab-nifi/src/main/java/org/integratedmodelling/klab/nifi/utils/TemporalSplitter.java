@@ -0,0 +1,102 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.integratedmodelling.klab.api.knowledge.observation.scale.time.Time;
+
+/**
+ * Splits the time range of an observation request into one request per step of its temporal
+ * resolution, i.e. {@code tscope} units of {@code tunit}. Steps are computed on the UTC calendar,
+ * so months and years have their actual lengths; the last step is truncated at the end of the
+ * range.
+ */
+public final class TemporalSplitter {
+
+  /** One step of a request, with its position and time slice. */
+  public record Slice(int index, long start, long end, KlabObservationNifiRequest request) {}
+
+  private TemporalSplitter() {}
+
+  /**
+   * The k.LAB resolution type for the time unit of a request, e.g. "year" or "month".
+   *
+   * @throws IllegalArgumentException if the unit is not known
+   */
+  public static Time.Resolution.Type resolutionType(String tunit) {
+    return Time.Resolution.Type.valueOf(tunit.strip().toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Split the request into its time steps, suffixing each name with the index of the step. A
+   * request without geometry, or whose range fits in a single step, is returned as one slice.
+   *
+   * @param maxSteps the maximum number of slices allowed, to guard against a too fine resolution
+   */
+  public static List<Slice> split(KlabObservationNifiRequest request, int maxSteps)
+      throws KlabNifiException {
+    var geometry = request.getGeometry();
+    if (geometry == null) {
+      return List.of(new Slice(0, 0, 0, request));
+    }
+    var time = geometry.getTime();
+    if (time.getTscope() <= 0) {
+      throw new KlabNifiException("The time scope must be positive");
+    }
+
+    ChronoUnit unit;
+    long amount = time.getTscope();
+    try {
+      unit =
+          switch (resolutionType(time.getTunit())) {
+            case MILLISECOND -> ChronoUnit.MILLIS;
+            case SECOND -> ChronoUnit.SECONDS;
+            case MINUTE -> ChronoUnit.MINUTES;
+            case HOUR -> ChronoUnit.HOURS;
+            case DAY -> ChronoUnit.DAYS;
+            case WEEK -> ChronoUnit.WEEKS;
+            case MONTH -> ChronoUnit.MONTHS;
+            case YEAR -> ChronoUnit.YEARS;
+            case DECADE -> ChronoUnit.DECADES;
+            case CENTURY -> ChronoUnit.CENTURIES;
+            case MILLENNIUM -> ChronoUnit.MILLENNIA;
+          };
+    } catch (IllegalArgumentException e) {
+      throw new KlabNifiException("Unknown time unit " + time.getTunit());
+    }
+
+    List<Slice> ret = new ArrayList<>();
+    ZonedDateTime start = Instant.ofEpochMilli(time.getTstart()).atZone(ZoneOffset.UTC);
+    while (ret.isEmpty() || start.toInstant().toEpochMilli() < time.getTend()) {
+      if (ret.size() == maxSteps) {
+        throw new KlabNifiException(
+            "The time range of the request has more than " + maxSteps + " steps");
+      }
+      ZonedDateTime end = start.plus(amount, unit);
+      long sliceStart = start.toInstant().toEpochMilli();
+      long sliceEnd = Math.min(end.toInstant().toEpochMilli(), time.getTend());
+      var space = geometry.getSpace();
+      var slice =
+          new KlabObservationNifiRequest(
+              new KlabObservationNifiRequest.Geometry(
+                  space,
+                  new KlabObservationNifiRequest.Geometry.Time(
+                      sliceStart, sliceEnd, time.getTunit(), time.getTscope())),
+              request.getObservationName() + "_" + ret.size(),
+              request.getObservationSemantics(),
+              request.getDigitalTwin(),
+              request.getObservationId());
+      ret.add(new Slice(ret.size(), sliceStart, sliceEnd, slice));
+      start = end;
+    }
+
+    if (ret.size() == 1) {
+      return List.of(new Slice(0, time.getTstart(), time.getTend(), request));
+    }
+    return ret;
+  }
+}
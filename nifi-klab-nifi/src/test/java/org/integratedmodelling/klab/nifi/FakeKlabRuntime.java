@@ -0,0 +1,394 @@
+package org.integratedmodelling.klab.nifi;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import org.apache.nifi.util.TestRunner;
+import org.integratedmodelling.klab.api.engine.Engine;
+import org.integratedmodelling.klab.api.knowledge.Concept;
+import org.integratedmodelling.klab.api.knowledge.Observable;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.knowledge.observation.impl.ObservationImpl;
+import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.api.scope.UserScope;
+import org.integratedmodelling.klab.api.services.Reasoner;
+import org.integratedmodelling.klab.api.services.ResourcesService;
+import org.integratedmodelling.klab.api.services.resources.ResourceSet;
+import org.integratedmodelling.klab.api.services.runtime.Channel;
+import org.integratedmodelling.klab.api.services.runtime.Message;
+
+/**
+ * An in-process stand-in for the k.LAB engine and services, to drive the processors offline. The
+ * engine authenticates anybody, every URL connects to a digital twin, and submitted observations
+ * are resolved after a random latency in the configured range, fail at the configured rate and
+ * notify message listeners as the real runtime does. Digital twin scopes can be closed, after which
+ * their URL connects to a new one.
+ *
+ * <p>Only the methods used by the controller and the processors are answered explicitly; any other
+ * method answers a default for its return type, so that the fake does not follow every change of
+ * the k.LAB API.
+ */
+public class FakeKlabRuntime implements AutoCloseable {
+
+  /** A controller service using this runtime instead of the k.LAB services. */
+  public static class ControllerService extends KlabControllerService {
+
+    private final FakeKlabRuntime runtime;
+
+    public ControllerService(FakeKlabRuntime runtime) {
+      this.runtime = runtime;
+    }
+
+    @Override
+    protected Engine createEngine() {
+      return runtime.engine();
+    }
+
+    /**
+     * Enable the service on the runner and wait for it to be ready, as it authenticates in the
+     * background and processors yield until then.
+     */
+    public void enableAndAwaitReady(TestRunner runner) {
+      runner.enableControllerService(this);
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(READY_TIMEOUT_SECONDS);
+      while (getReadiness() != KlabController.Readiness.READY) {
+        if (System.nanoTime() > deadline) {
+          throw new AssertionError("Controller not ready: " + getReadiness());
+        }
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+      }
+    }
+  }
+
+  private static final long READY_TIMEOUT_SECONDS = 30;
+
+  private static final Map<Class<?>, Object> ZEROES =
+      Map.of(
+          boolean.class, false,
+          char.class, '\0',
+          byte.class, (byte) 0,
+          short.class, (short) 0,
+          int.class, 0,
+          long.class, 0L,
+          float.class, 0f,
+          double.class, 0d);
+
+  private final ScheduledExecutorService executor;
+  private final Random random = new Random(42);
+  private final AtomicLong observationIds = new AtomicLong();
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong closed = new AtomicLong();
+  private final AtomicLong authentications = new AtomicLong();
+  private final Map<String, ContextScope> digitalTwins = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Object> services = new ConcurrentHashMap<>();
+  private final Reasoner reasoner =
+      stub(
+          Reasoner.class,
+          Map.of(
+              "resolveObservable", args -> observable(String.valueOf(args[0])),
+              "resolveConcept", args -> concept(String.valueOf(args[0]))));
+  private final ResourcesService resourcesService =
+      stub(ResourcesService.class, Map.of("resolve", args -> stub(ResourceSet.class)));
+  private volatile long minLatencyMicros = 1000;
+  private volatile long maxLatencyMicros = 5000;
+  private volatile double failureRate = 0;
+  private volatile boolean transientFailures;
+  private volatile int messagesPerObservation = 1;
+  private volatile CountDownLatch authenticationGate = new CountDownLatch(0);
+
+  public FakeKlabRuntime() {
+    this(4);
+  }
+
+  public FakeKlabRuntime(int threads) {
+    this.executor =
+        Executors.newScheduledThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "fake-klab-runtime");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /** The range of the resolution latency, uniformly distributed. */
+  public FakeKlabRuntime latency(long min, long max, TimeUnit unit) {
+    this.minLatencyMicros = unit.toMicros(min);
+    this.maxLatencyMicros = Math.max(minLatencyMicros, unit.toMicros(max));
+    return this;
+  }
+
+  /** The fraction of submissions completing exceptionally, between 0 and 1. */
+  public FakeKlabRuntime failureRate(double failureRate) {
+    this.failureRate = failureRate;
+    return this;
+  }
+
+  /** Whether the simulated failures are timeouts, worth retrying, or errors of the observation. */
+  public FakeKlabRuntime transientFailures(boolean transientFailures) {
+    this.transientFailures = transientFailures;
+    return this;
+  }
+
+  /** The number of messages sent to the listeners of a digital twin for each resolution. */
+  public FakeKlabRuntime messagesPerObservation(int messagesPerObservation) {
+    this.messagesPerObservation = messagesPerObservation;
+    return this;
+  }
+
+  /**
+   * Hold authentications until the gate opens, ignoring interrupts as a blocked remote call would.
+   */
+  public FakeKlabRuntime authenticationGate(CountDownLatch authenticationGate) {
+    this.authenticationGate = authenticationGate;
+    return this;
+  }
+
+  /** The number of authentications started. */
+  public long getAuthentications() {
+    return authentications.get();
+  }
+
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** The number of digital twin scopes closed. */
+  public long getClosed() {
+    return closed.get();
+  }
+
+  public Engine engine() {
+    UserScope userScope =
+        stub(
+            UserScope.class,
+            Map.of(
+                "connect", args -> digitalTwin(String.valueOf(args[0])),
+                "getService", args -> service((Class<?>) args[0])));
+    return stub(
+        Engine.class, Map.of("boot", args -> true, "authenticate", args -> authenticate(userScope)));
+  }
+
+  private UserScope authenticate(UserScope userScope) {
+    authentications.incrementAndGet();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        authenticationGate.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return userScope;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private ContextScope digitalTwin(String url) {
+    return digitalTwins.computeIfAbsent(url, this::contextScope);
+  }
+
+  private ContextScope contextScope(String url) {
+    List<BiConsumer<Channel, Message>> listeners = new CopyOnWriteArrayList<>();
+    ContextScope[] scope = new ContextScope[1];
+    scope[0] =
+        stub(
+            ContextScope.class,
+            Map.of(
+                "submit", args -> submit(scope[0], listeners, (Observation) args[0]),
+                "onMessage", args -> listeners.add(listener(args[0])),
+                "getService", args -> service((Class<?>) args[0]),
+                "close", args -> close(url, scope[0])),
+            AutoCloseable.class);
+    return scope[0];
+  }
+
+  private Object close(String url, ContextScope scope) {
+    if (digitalTwins.remove(url, scope)) {
+      closed.incrementAndGet();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static BiConsumer<Channel, Message> listener(Object listener) {
+    return (BiConsumer<Channel, Message>) listener;
+  }
+
+  /* The services are shared by all scopes, as the controller caches resolutions per service */
+  private Object service(Class<?> serviceClass) {
+    if (serviceClass == Reasoner.class) {
+      return reasoner;
+    } else if (serviceClass == ResourcesService.class) {
+      return resourcesService;
+    }
+    return services.computeIfAbsent(serviceClass, FakeKlabRuntime::stub);
+  }
+
+  private static Observable observable(String semantics) {
+    return stub(
+        Observable.class,
+        Map.of(
+            "getUrn", args -> semantics,
+            "getSemantics", args -> concept(semantics),
+            "toString", args -> semantics));
+  }
+
+  private static Concept concept(String semantics) {
+    return stub(Concept.class, Map.of("getUrn", args -> semantics, "toString", args -> semantics));
+  }
+
+  /*
+  Resolve the observation after a random latency, or fail it. The draws are made on the submitting
+  thread, so that a sequence of submissions from one thread is reproducible.
+   */
+  private CompletableFuture<Observation> submit(
+      ContextScope scope, List<BiConsumer<Channel, Message>> listeners, Observation observation) {
+    submitted.incrementAndGet();
+    boolean failure = random.nextDouble() < failureRate;
+    long latency =
+        minLatencyMicros + (long) (random.nextDouble() * (maxLatencyMicros - minLatencyMicros));
+    CompletableFuture<Observation> ret = new CompletableFuture<>();
+    executor.schedule(
+        () -> {
+          if (failure) {
+            failed.incrementAndGet();
+            String message = "Simulated failure resolving " + observation.getName();
+            ret.completeExceptionally(
+                transientFailures
+                    ? new SocketTimeoutException(message)
+                    : new IllegalStateException(message));
+            return;
+          }
+          long id = observationIds.incrementAndGet();
+          if (observation instanceof ObservationImpl impl) {
+            impl.setId(id);
+          }
+          for (int i = 0; i < messagesPerObservation; i++) {
+            Message message = message(id, observation);
+            listeners.forEach(listener -> listener.accept(scope, message));
+          }
+          ret.complete(resolved(observation, id));
+        },
+        latency,
+        TimeUnit.MICROSECONDS);
+    return ret;
+  }
+
+  private static Message message(long id, Observation observation) {
+    Map<String, Object> payload = Map.of("id", id, "name", String.valueOf(observation.getName()));
+    long timestamp = System.currentTimeMillis();
+    return stub(
+        Message.class,
+        Map.of(
+            "getQueue", args -> Message.Queue.Events,
+            "getTimestamp", args -> timestamp,
+            "getPayload", args -> payload));
+  }
+
+  /* The submitted observation with its new id, and a default for anything it leaves null */
+  private static Observation resolved(Observation observation, long id) {
+    return (Observation)
+        Proxy.newProxyInstance(
+            Observation.class.getClassLoader(),
+            new Class<?>[] {Observation.class},
+            (proxy, method, args) -> {
+              if (method.getName().equals("getId")) {
+                return id;
+              }
+              Object ret;
+              try {
+                ret = method.invoke(observation, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              }
+              return ret == null ? defaultValue(method.getReturnType()) : ret;
+            });
+  }
+
+  static <T> T stub(Class<T> type) {
+    return stub(type, Map.of());
+  }
+
+  /**
+   * An implementation of the interface answering the named methods with the given functions of
+   * their arguments, and any other method with a default for its return type: empty strings,
+   * collections and optionals, zero, false, the first enum constant or a further stub. The stub
+   * also implements the further interfaces, if any.
+   */
+  static <T> T stub(
+      Class<T> type, Map<String, Function<Object[], Object>> answers, Class<?>... interfaces) {
+    Class<?>[] implemented = new Class<?>[interfaces.length + 1];
+    implemented[0] = type;
+    System.arraycopy(interfaces, 0, implemented, 1, interfaces.length);
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            implemented,
+            (proxy, method, args) -> {
+              Function<Object[], Object> answer = answers.get(method.getName());
+              if (answer != null) {
+                return answer.apply(args == null ? new Object[0] : args);
+              }
+              return switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == args[0];
+                case "toString" -> "fake " + type.getSimpleName();
+                default -> defaultValue(method.getReturnType());
+              };
+            }));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type.isPrimitive()) {
+      return ZEROES.get(type);
+    } else if (type == String.class) {
+      return "";
+    } else if (type.isEnum()) {
+      Object[] constants = type.getEnumConstants();
+      return constants.length == 0 ? null : constants[0];
+    } else if (type == Optional.class) {
+      return Optional.empty();
+    } else if (type == Set.class) {
+      return Set.of();
+    } else if (type == Map.class) {
+      return Map.of();
+    } else if (type == List.class || type == Collection.class) {
+      return List.of();
+    } else if (type == CompletableFuture.class) {
+      return CompletableFuture.completedFuture(null);
+    } else if (type.isInterface()) {
+      return stub(type);
+    }
+    return null;
+  }
+}
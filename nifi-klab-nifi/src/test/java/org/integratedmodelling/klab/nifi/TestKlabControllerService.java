@@ -16,6 +16,13 @@
  */
 package org.integratedmodelling.klab.nifi;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
@@ -24,6 +31,15 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.net.MalformedURLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.integratedmodelling.klab.api.scope.ContextScope;
+import org.integratedmodelling.klab.api.scope.UserScope;
 
 public class TestKlabControllerService {
 
@@ -54,4 +70,127 @@ public class TestKlabControllerService {
     runner.assertValid(service);
     runner.run();
   }
+
+  @Test
+  public void testScopesLeavingThePoolAreClosed() throws Exception {
+    String dt = "https://services.integratedmodelling.org/runtime/main/dt/";
+    try (FakeKlabRuntime runtime = new FakeKlabRuntime()) {
+      final TestRunner runner = TestRunners.newTestRunner(KlabObservation.class);
+      final var service = new FakeKlabRuntime.ControllerService(runtime);
+      runner.addControllerService("klab-controller-service", service);
+      runner.setProperty(service, KlabControllerService.SCOPE_POOL_SIZE, "2");
+      service.enableAndAwaitReady(runner);
+
+      ContextScope first = service.getContextScope(dt + "first");
+      service.getContextScope(dt + "second");
+      service.getContextScope(dt + "third");
+      // the least recently used DT made room for the third one
+      assertEquals(1, runtime.getClosed());
+      assertFalse(service.containsDT(dt + "first"));
+
+      // connecting again to an evicted DT opens a new scope, evicting the next one
+      assertNotSame(first, service.getContextScope(dt + "first"));
+      assertEquals(2, runtime.getClosed());
+      assertFalse(service.containsDT(dt + "second"));
+
+      // disabling the service closes the scopes still pooled
+      runner.disableControllerService(service);
+      assertEquals(4, runtime.getClosed());
+    }
+  }
+
+  @Test
+  public void testHungSubmissionsTimeOutAndGiveBackTheirPermits() throws Exception {
+    String dt = "https://services.integratedmodelling.org/runtime/main/dt/hung";
+    try (FakeKlabRuntime runtime = new FakeKlabRuntime().latency(10, 10, TimeUnit.MINUTES)) {
+      final TestRunner runner = TestRunners.newTestRunner(KlabObservation.class);
+      final var service = new FakeKlabRuntime.ControllerService(runtime);
+      runner.addControllerService("klab-controller-service", service);
+      runner.setProperty(
+          service,
+          KlabControllerService.CONCURRENCY_LIMIT,
+          KlabControllerService.CONCURRENCY_ADAPTIVE.getValue());
+      runner.setProperty(service, KlabControllerService.INITIAL_CONCURRENCY, "2");
+      runner.setProperty(service, KlabControllerService.SUBMISSION_PERMIT_TIMEOUT, "10 ms");
+      runner.setProperty(service, KlabControllerService.SUBMISSION_TIMEOUT, "200 ms");
+      service.enableAndAwaitReady(runner);
+
+      ContextScope scope = service.getContextScope(dt);
+      Observation observation = FakeKlabRuntime.stub(Observation.class);
+      var hung =
+          List.of(
+              service.submitObservation(dt, "first", scope, observation),
+              service.submitObservation(dt, "second", scope, observation));
+      // the permits are all held by the submissions that are not answered
+      assertThrows(
+          SubmissionRejectedException.class,
+          () -> service.submitObservation(dt, "third", scope, observation));
+
+      for (var submission : hung) {
+        var error =
+            assertThrows(ExecutionException.class, () -> submission.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(TimeoutException.class, error.getCause());
+      }
+      runtime.latency(1, 5, TimeUnit.MILLISECONDS);
+      service.submitObservation(dt, "third", scope, observation).get(5, TimeUnit.SECONDS);
+      runner.disableControllerService(service);
+    }
+  }
+
+  @Test
+  public void testWarmUpFinishingAfterDisableDoesNotPublish() throws Exception {
+    String dt = "https://services.integratedmodelling.org/runtime/main/dt/warm";
+    CountDownLatch gate = new CountDownLatch(1);
+    try (FakeKlabRuntime runtime = new FakeKlabRuntime().authenticationGate(gate)) {
+      final TestRunner runner = TestRunners.newTestRunner(KlabObservation.class);
+      final var service = new FakeKlabRuntime.ControllerService(runtime);
+      runner.addControllerService("klab-controller-service", service);
+      runner.setProperty(service, KlabControllerService.WARM_UP_DT_URLS, dt);
+      runner.enableControllerService(service);
+      while (runtime.getAuthentications() == 0) {
+        Thread.sleep(10);
+      }
+
+      // the warm-up is blocked in the authentication, which disabling does not interrupt
+      var disabled = CompletableFuture.runAsync(() -> runner.disableControllerService(service));
+      Thread.sleep(100);
+      assertFalse(disabled.isDone(), "disabled without waiting for the warm-up");
+      gate.countDown();
+      disabled.get(30, TimeUnit.SECONDS);
+
+      assertEquals(KlabController.Readiness.STARTING, service.getReadiness());
+      assertNull(service.getScope(UserScope.class));
+      assertFalse(service.containsDT(dt));
+      assertEquals(1, runtime.getAuthentications());
+    }
+  }
+
+  @Test
+  public void testScopeEvictedUnderASubmissionIsClosedOnceItCompletes() throws Exception {
+    String dt = "https://services.integratedmodelling.org/runtime/main/dt/";
+    try (FakeKlabRuntime runtime = new FakeKlabRuntime().latency(300, 300, TimeUnit.MILLISECONDS)) {
+      final TestRunner runner = TestRunners.newTestRunner(KlabObservation.class);
+      final var service = new FakeKlabRuntime.ControllerService(runtime);
+      runner.addControllerService("klab-controller-service", service);
+      runner.setProperty(service, KlabControllerService.SCOPE_POOL_SIZE, "1");
+      service.enableAndAwaitReady(runner);
+
+      ContextScope first = service.getContextScope(dt + "first");
+      var submission =
+          service.submitObservation(
+              dt + "first", "first", first, FakeKlabRuntime.stub(Observation.class));
+      service.getContextScope(dt + "second");
+      assertFalse(service.containsDT(dt + "first"));
+      assertEquals(0, runtime.getClosed());
+
+      submission.get(5, TimeUnit.SECONDS);
+      // released by the completion of the submission, which may run after get() returns
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (runtime.getClosed() == 0 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, runtime.getClosed());
+      runner.disableControllerService(service);
+    }
+  }
 }
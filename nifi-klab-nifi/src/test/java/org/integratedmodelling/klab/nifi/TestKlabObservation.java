@@ -0,0 +1,210 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.integratedmodelling.klab.nifi.utils.KlabAttributes;
+import org.integratedmodelling.klab.nifi.utils.RetryPolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The submission modes of {@link KlabObservation} and its routing of failures, against {@link
+ * FakeKlabRuntime}.
+ */
+public class TestKlabObservation {
+
+  private static final long TIMEOUT_SECONDS = 30;
+  private static final String DT_URL =
+      "https://services.integratedmodelling.org/runtime/main/dt/test";
+
+  private FakeKlabRuntime runtime;
+  private FakeKlabRuntime.ControllerService service;
+  private TestRunner runner;
+
+  @BeforeEach
+  public void setUp() throws InitializationException {
+    runtime = new FakeKlabRuntime().latency(200, 200, TimeUnit.MILLISECONDS);
+    service = new FakeKlabRuntime.ControllerService(runtime);
+    runner = TestRunners.newTestRunner(KlabObservation.class);
+    runner.addControllerService("klab-controller-service", service);
+    runner.setProperty(KlabObservation.KLAB_CONTROLLER_SERVICE, "klab-controller-service");
+    runner.setProperty(KlabObservation.SUBMISSION_MODE, KlabObservation.SUBMISSION_ASYNCHRONOUS);
+    runner.setProperty(KlabObservation.MAX_IN_FLIGHT, "5");
+    runner.setProperty(KlabObservation.BATCH_SIZE, "100");
+  }
+
+  @AfterEach
+  public void tearDown() {
+    runner.disableControllerService(service);
+    runtime.close();
+  }
+
+  @Test
+  public void testWindowLimitsSubmissionsAndResultsAreChildrenOfRequests() {
+    service.enableAndAwaitReady(runner);
+    for (int i = 0; i < 12; i++) {
+      runner.enqueue(request("observation_" + i), Map.of("request.index", String.valueOf(i)));
+    }
+
+    runner.run(1, false, true);
+    // only a window of requests is pulled, the others wait in the queue
+    assertEquals(5, runtime.getSubmitted());
+    assertEquals(7, runner.getQueueSize().getObjectCount());
+    runner.assertTransferCount(KlabObservation.REL_SUCCESS, 0);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (runner.getFlowFilesForRelationship(KlabObservation.REL_SUCCESS).size() < 12) {
+      assertTrue(System.nanoTime() < deadline, "observations not resolved");
+      runner.run(1, false, false);
+    }
+    runner.run(1, true, false);
+
+    List<MockFlowFile> resolved = runner.getFlowFilesForRelationship(KlabObservation.REL_SUCCESS);
+    assertEquals(12, runtime.getSubmitted());
+    Set<String> requests = new HashSet<>();
+    for (MockFlowFile flowFile : resolved) {
+      // attributes are inherited from the request the observation was resolved for
+      requests.add(flowFile.getAttribute("request.index"));
+      assertTrue(Long.parseLong(flowFile.getAttribute("observation.id")) > 0);
+    }
+    assertEquals(12, requests.size());
+    assertFalse(requests.contains(null));
+  }
+
+  @Test
+  public void testStoppingReturnsPendingRequestsToTheQueue() {
+    service.enableAndAwaitReady(runner);
+    for (int i = 0; i < 3; i++) {
+      runner.enqueue(request("observation_" + i));
+    }
+
+    // a single trigger, after which the processor stops before anything resolves
+    runner.run(1, true, true);
+
+    assertEquals(3, runtime.getSubmitted());
+    assertEquals(3, runner.getQueueSize().getObjectCount());
+    runner.assertTransferCount(KlabObservation.REL_SUCCESS, 0);
+    runner.assertTransferCount(KlabObservation.REL_FAILURE, 0);
+  }
+
+  @Test
+  public void testTransientFailuresOpenTheCircuitBreaker() {
+    runtime.latency(1, 10, TimeUnit.MILLISECONDS).failureRate(1).transientFailures(true);
+    enableCircuitBreaker();
+    for (int i = 0; i < 200; i++) {
+      runner.enqueue(request("observation_" + i));
+    }
+    runUntilRouted(200);
+
+    int retried = runner.getFlowFilesForRelationship(KlabObservation.REL_RETRY).size();
+    int unavailable = runner.getFlowFilesForRelationship(KlabObservation.REL_UNAVAILABLE).size();
+    assertEquals(200, retried + unavailable);
+    assertEquals(runtime.getSubmitted(), retried);
+    // the breaker opens once the first window of submissions has failed
+    assertTrue(retried >= 10 && retried < 50, retried + " submissions failed");
+  }
+
+  @Test
+  public void testFailedObservationsLeaveTheCircuitBreakerClosed() {
+    runtime.latency(1, 10, TimeUnit.MILLISECONDS).failureRate(1);
+    enableCircuitBreaker();
+    for (int i = 0; i < 50; i++) {
+      runner.enqueue(request("observation_" + i));
+    }
+    runUntilRouted(50);
+
+    // the digital twin answers, so the errors of the observations are not held against it
+    runner.assertAllFlowFilesTransferred(KlabObservation.REL_FAILURE, 50);
+    assertEquals(50, runtime.getSubmitted());
+  }
+
+  @Test
+  public void testTransientFailuresAreRetriedUpToMaxAttempts() {
+    runtime.failureRate(1).transientFailures(true);
+    runner.setProperty(KlabObservation.SUBMISSION_MODE, KlabObservation.SUBMISSION_SYNCHRONOUS);
+    runner.setProperty(RetryPolicy.MAX_ATTEMPTS, "2");
+    service.enableAndAwaitReady(runner);
+    for (int i = 0; i < 20; i++) {
+      runner.enqueue(request("observation_" + i));
+    }
+    runner.run();
+
+    List<MockFlowFile> retries = runner.getFlowFilesForRelationship(KlabObservation.REL_RETRY);
+    assertEquals(20, retries.size());
+    for (MockFlowFile retry : retries) {
+      retry.assertAttributeEquals(KlabAttributes.KLAB_RETRY_COUNT, "1");
+      assertTrue(retry.isPenalized());
+      assertTrue(
+          Long.parseLong(retry.getAttribute(KlabAttributes.KLAB_RETRY_AFTER))
+              > System.currentTimeMillis());
+    }
+
+    // looped back once their backoff has elapsed, the second attempt is the last
+    runner.clearTransferState();
+    for (MockFlowFile retry : retries) {
+      Map<String, String> attributes = new HashMap<>(retry.getAttributes());
+      attributes.remove(CoreAttributes.UUID.key());
+      attributes.put(KlabAttributes.KLAB_RETRY_AFTER, "0");
+      runner.enqueue(retry.toByteArray(), attributes);
+    }
+    runner.run();
+    runner.assertAllFlowFilesTransferred(KlabObservation.REL_FAILURE, 20);
+    assertEquals(40, runtime.getSubmitted());
+  }
+
+
+  /* A breaker opening after a window of 10 failed calls, and not probing during the test */
+  private void enableCircuitBreaker() {
+    runner.setProperty(service, KlabControllerService.CIRCUIT_BREAKER, "true");
+    runner.setProperty(service, KlabControllerService.CIRCUIT_BREAKER_WINDOW, "10");
+    runner.setProperty(service, KlabControllerService.CIRCUIT_BREAKER_OPEN_DURATION, "10 min");
+    runner.setProperty(KlabObservation.SUBMISSION_MODE, KlabObservation.SUBMISSION_SYNCHRONOUS);
+    runner.setProperty(KlabObservation.BATCH_SIZE, "10");
+    service.enableAndAwaitReady(runner);
+  }
+
+  private void runUntilRouted(int flowfiles) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    runner.run(1, false, true);
+    while (routed() < flowfiles && System.nanoTime() < deadline) {
+      runner.run(1, false, false);
+    }
+    runner.run(1, true, false);
+  }
+
+  private int routed() {
+    return runner.getFlowFilesForRelationship(KlabObservation.REL_SUCCESS).size()
+        + runner.getFlowFilesForRelationship(KlabObservation.REL_FAILURE).size()
+        + runner.getFlowFilesForRelationship(KlabObservation.REL_RETRY).size()
+        + runner.getFlowFilesForRelationship(KlabObservation.REL_UNAVAILABLE).size();
+  }
+
+  private static String request(String name) {
+    return """
+        {
+          "geometry" : {
+            "space" : { "shape" : "EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))" },
+            "time" : { "tstart" : 1325376000000, "tend" : 1356998400000 }
+          },
+          "name" : "%s",
+          "semantics" : "earth:Terrestrial earth:Region",
+          "digitalTwin" : "%s"
+        }
+        """
+        .formatted(name, DT_URL);
+  }
+}
@@ -0,0 +1,145 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.MockRecordWriter;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** The per-row results of {@link KlabObservationRecordProcessor}, against {@link FakeKlabRuntime}. */
+public class TestKlabObservationRecordProcessor {
+
+  private static final String DEFAULT_DT_URL =
+      "https://services.integratedmodelling.org/runtime/main/dt/default";
+  private static final String DT_URL =
+      "https://services.integratedmodelling.org/runtime/main/dt/records";
+  private static final String SHAPE = "POLYGON((33 -7, 35 -7, 35 -9, 33 -7))";
+  private static final String SEMANTICS = "earth:Terrestrial earth:Region";
+
+  // The result fields, in the order of the result schema
+  private static final int DIGITAL_TWIN = 2;
+  private static final int OBSERVATION_ID = 3;
+  private static final int STATUS = 5;
+  private static final int ERROR = 6;
+
+  private FakeKlabRuntime runtime;
+  private FakeKlabRuntime.ControllerService service;
+  private MockRecordParser reader;
+  private TestRunner runner;
+
+  @BeforeEach
+  public void setUp() throws InitializationException {
+    runtime = new FakeKlabRuntime();
+    service = new FakeKlabRuntime.ControllerService(runtime);
+    reader = new MockRecordParser();
+    reader.addSchemaField("name", RecordFieldType.STRING);
+    reader.addSchemaField("semantics", RecordFieldType.STRING);
+    reader.addSchemaField("shape", RecordFieldType.STRING);
+    reader.addSchemaField("tstart", RecordFieldType.LONG);
+    reader.addSchemaField("tend", RecordFieldType.LONG);
+    reader.addSchemaField("digitalTwin", RecordFieldType.STRING);
+    MockRecordWriter writer = new MockRecordWriter(null, false);
+
+    runner = TestRunners.newTestRunner(KlabObservationRecordProcessor.class);
+    runner.addControllerService("klab-controller-service", service);
+    runner.addControllerService("reader", reader);
+    runner.addControllerService("writer", writer);
+    runner.setProperty(
+        KlabObservationRecordProcessor.KLAB_CONTROLLER_SERVICE, "klab-controller-service");
+    runner.setProperty(KlabObservationRecordProcessor.RECORD_READER, "reader");
+    runner.setProperty(KlabObservationRecordProcessor.RECORD_WRITER, "writer");
+    runner.enableControllerService(reader);
+    runner.enableControllerService(writer);
+    service.enableAndAwaitReady(runner);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    runner.disableControllerService(service);
+    runtime.close();
+  }
+
+  @Test
+  public void testEachRowHasItsStatusAndBadRowsDoNotFailTheOthers() {
+    runner.setProperty(KlabObservationRecordProcessor.DEFAULT_DT_URL, DEFAULT_DT_URL);
+    reader.addRecord("region", SEMANTICS, SHAPE, 1325376000000L, 1356998400000L, DT_URL);
+    // no shape
+    reader.addRecord("noshape", SEMANTICS, null, 1325376000000L, 1356998400000L, DT_URL);
+    // starting after its end
+    reader.addRecord("backwards", SEMANTICS, SHAPE, 1356998400000L, 1325376000000L, DT_URL);
+    // observing the default digital twin
+    reader.addRecord("default", SEMANTICS, SHAPE, 1325376000000L, 1356998400000L, null);
+    runner.enqueue(new byte[0]);
+    runner.run();
+
+    runner.assertTransferCount(KlabObservationRecordProcessor.REL_SUCCESS, 1);
+    runner.assertTransferCount(KlabObservationRecordProcessor.REL_ORIGINAL, 1);
+    runner.assertTransferCount(KlabObservationRecordProcessor.REL_FAILURE, 0);
+    MockFlowFile result =
+        runner.getFlowFilesForRelationship(KlabObservationRecordProcessor.REL_SUCCESS).getFirst();
+    result.assertAttributeEquals("record.count", "4");
+    result.assertAttributeEquals("klab.observations.resolved", "2");
+    result.assertAttributeEquals("klab.observations.failed", "2");
+
+    List<String[]> rows = rows(result);
+    assertEquals(4, rows.size());
+    assertEquals(KlabObservationRecordProcessor.STATUS_RESOLVED, rows.get(0)[STATUS]);
+    assertEquals(DT_URL, rows.get(0)[DIGITAL_TWIN]);
+    assertTrue(Long.parseLong(rows.get(0)[OBSERVATION_ID]) > 0);
+    for (String[] bad : List.of(rows.get(1), rows.get(2))) {
+      assertEquals(KlabObservationRecordProcessor.STATUS_FAILED, bad[STATUS]);
+      assertTrue(!bad[ERROR].isEmpty(), "no error for " + bad[0]);
+      assertEquals("", bad[OBSERVATION_ID]);
+    }
+    assertEquals(KlabObservationRecordProcessor.STATUS_RESOLVED, rows.get(3)[STATUS]);
+    assertEquals(DEFAULT_DT_URL, rows.get(3)[DIGITAL_TWIN]);
+    assertEquals(2, runtime.getSubmitted());
+  }
+
+  @Test
+  public void testRowsWithoutDigitalTwinFailWithoutDefault() {
+    reader.addRecord("region", SEMANTICS, SHAPE, 1325376000000L, 1356998400000L, null);
+    runner.enqueue(new byte[0]);
+    runner.run();
+
+    MockFlowFile result =
+        runner.getFlowFilesForRelationship(KlabObservationRecordProcessor.REL_SUCCESS).getFirst();
+    result.assertAttributeEquals("klab.observations.resolved", "0");
+    result.assertAttributeEquals("klab.observations.failed", "1");
+    assertEquals(KlabObservationRecordProcessor.STATUS_FAILED, rows(result).getFirst()[STATUS]);
+    assertEquals(0, runtime.getSubmitted());
+  }
+
+  @Test
+  public void testFailedResolutionsAreReportedPerRow() {
+    runtime.failureRate(1);
+    for (int i = 0; i < 3; i++) {
+      reader.addRecord("region_" + i, SEMANTICS, SHAPE, 1325376000000L, 1356998400000L, DT_URL);
+    }
+    runner.enqueue(new byte[0]);
+    runner.run();
+
+    MockFlowFile result =
+        runner.getFlowFilesForRelationship(KlabObservationRecordProcessor.REL_SUCCESS).getFirst();
+    result.assertAttributeEquals("klab.observations.resolved", "0");
+    result.assertAttributeEquals("klab.observations.failed", "3");
+    for (String[] row : rows(result)) {
+      assertEquals(KlabObservationRecordProcessor.STATUS_FAILED, row[STATUS]);
+      assertTrue(row[ERROR].contains("Simulated failure resolving " + row[0]), row[ERROR]);
+    }
+  }
+
+  /* The result records, as written unquoted by the mock writer; the error is the last field */
+  private static List<String[]> rows(MockFlowFile result) {
+    return result.getContent().lines().map(line -> line.split(",", ERROR + 1)).toList();
+  }
+}
@@ -0,0 +1,122 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A load run of {@link KlabObservation} against {@link FakeKlabRuntime}, logging the throughput
+ * and the latency percentiles collected by the controller. Tagged so that it only runs with the
+ * {@code throughput} Maven profile; the number of FlowFiles can be raised with {@code
+ * -Dklab.throughput.flowfiles=<n>} for longer runs.
+ */
+@Tag("throughput")
+public class TestKlabObservationThroughput {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TestKlabObservationThroughput.class);
+
+  private static final int FLOWFILES = Integer.getInteger("klab.throughput.flowfiles", 2000);
+  private static final long TIMEOUT_SECONDS = 120;
+  private static final String DT_URL =
+      "https://services.integratedmodelling.org/runtime/main/dt/throughput";
+
+  private FakeKlabRuntime runtime;
+  private FakeKlabRuntime.ControllerService service;
+  private TestRunner runner;
+
+  @BeforeEach
+  public void setUp() throws InitializationException {
+    runtime = new FakeKlabRuntime().latency(1, 10, TimeUnit.MILLISECONDS).failureRate(0.01);
+    service = new FakeKlabRuntime.ControllerService(runtime);
+    runner = TestRunners.newTestRunner(KlabObservation.class);
+    runner.addControllerService("klab-controller-service", service);
+    runner.setProperty(KlabObservation.KLAB_CONTROLLER_SERVICE, "klab-controller-service");
+    runner.setProperty(KlabObservation.SUBMISSION_MODE, KlabObservation.SUBMISSION_ASYNCHRONOUS);
+    runner.setProperty(KlabObservation.MAX_IN_FLIGHT, "500");
+    runner.setProperty(KlabObservation.BATCH_SIZE, "100");
+  }
+
+  @AfterEach
+  public void tearDown() {
+    if (runner.isControllerServiceEnabled(service)) {
+      runner.disableControllerService(service);
+    }
+    runtime.close();
+  }
+
+  @Test
+  public void testAsynchronousThroughput() {
+    service.enableAndAwaitReady(runner);
+    for (int i = 0; i < FLOWFILES; i++) {
+      runner.enqueue(request("observation_" + i));
+    }
+
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    runner.run(1, false, true);
+    while (routed() < FLOWFILES && System.nanoTime() < deadline) {
+      runner.run(1, false, false);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    runner.run(1, true, false);
+
+    int succeeded = runner.getFlowFilesForRelationship(KlabObservation.REL_SUCCESS).size();
+    int failed = runner.getFlowFilesForRelationship(KlabObservation.REL_FAILURE).size();
+    LOGGER.info(
+        "{} FlowFiles in {} s: {} FlowFiles/s, {} resolved, {} failed",
+        FLOWFILES,
+        String.format("%.2f", seconds),
+        String.format("%.0f", FLOWFILES / seconds),
+        succeeded,
+        failed);
+    service.getLatencyStatistics().forEach(statistics -> LOGGER.info("{}", statistics));
+
+    assertEquals(FLOWFILES, succeeded + failed);
+    assertEquals(FLOWFILES, runtime.getSubmitted());
+    assertEquals(runtime.getFailed(), failed);
+    assertTrue(
+        service.getLatencyStatistics().stream()
+            .anyMatch(s -> s.getPhase().equals("submit") && s.getCount() == succeeded));
+  }
+
+  private int routed() {
+    return runner.getFlowFilesForRelationship(KlabObservation.REL_SUCCESS).size()
+        + runner.getFlowFilesForRelationship(KlabObservation.REL_FAILURE).size()
+        + runner.getFlowFilesForRelationship(KlabObservation.REL_UNAVAILABLE).size();
+  }
+
+  private static String request(String name) {
+    return """
+        {
+          "geometry" : {
+            "space" : {
+              "shape" : "EPSG:4326 POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))",
+              "sgrid" : "1.km",
+              "proj" : "EPSG:4326"
+            },
+            "time" : {
+              "tstart" : 1325376000000,
+              "tend" : 1356998400000,
+              "tunit" : "year",
+              "tscope" : 1
+            }
+          },
+          "name" : "%s",
+          "semantics" : "earth:Terrestrial earth:Region",
+          "digitalTwin" : "%s",
+          "observationId" : -1
+        }
+        """
+        .formatted(name, DT_URL);
+  }
+}
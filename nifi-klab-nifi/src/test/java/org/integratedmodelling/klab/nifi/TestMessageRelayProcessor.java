@@ -0,0 +1,132 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** The batched NDJSON output of {@link MessageRelayProcessor}. */
+public class TestMessageRelayProcessor {
+
+  /* Hands events straight to the listening processor, instead of relaying k.LAB messages */
+  private static class EventSource extends FakeKlabRuntime.ControllerService {
+
+    private volatile Consumer<EventData> listener;
+
+    EventSource(FakeKlabRuntime runtime) {
+      super(runtime);
+    }
+
+    @Override
+    public void addEventListener(Consumer<EventData> listener, EventFilter filter) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void removeEventListener(Consumer<EventData> listener) {
+      this.listener = null;
+    }
+
+    void publish(String payload, Map<String, String> attributes) {
+      listener.accept(new EventData(payload, attributes));
+    }
+  }
+
+  private FakeKlabRuntime runtime;
+  private EventSource events;
+  private TestRunner runner;
+
+  @BeforeEach
+  public void setUp() throws InitializationException {
+    runtime = new FakeKlabRuntime();
+    events = new EventSource(runtime);
+    runner = TestRunners.newTestRunner(MessageRelayProcessor.class);
+    runner.addControllerService("klab-controller-service", events);
+    runner.enableControllerService(events);
+    runner.setProperty(MessageRelayProcessor.OUTPUT_MODE, MessageRelayProcessor.OUTPUT_BATCH);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    runner.disableControllerService(events);
+    runtime.close();
+  }
+
+  @Test
+  public void testFullBatchIsEmittedWithoutWaiting() {
+    runner.setProperty(MessageRelayProcessor.BATCH_SIZE, "3");
+    start();
+    runner.setProperty(MessageRelayProcessor.MAX_BATCH_WAIT, "1 min");
+    for (int i = 0; i < 6; i++) {
+      events.publish("{\"event\":" + i + "}", Map.of("message.source", "dt"));
+    }
+
+    long start = System.nanoTime();
+    runner.run(2, false, false);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30), "waited for full batch");
+    runner.run(1, true, false);
+
+    List<MockFlowFile> batches =
+        runner.getFlowFilesForRelationship(MessageRelayProcessor.REL_SUCCESS);
+    assertEquals(2, batches.size());
+    batches.get(0).assertContentEquals("{\"event\":0}\n{\"event\":1}\n{\"event\":2}\n");
+    batches.get(1).assertContentEquals("{\"event\":3}\n{\"event\":4}\n{\"event\":5}\n");
+    for (MockFlowFile batch : batches) {
+      batch.assertAttributeEquals("event.count", "3");
+      batch.assertAttributeEquals(CoreAttributes.MIME_TYPE.key(), "application/x-ndjson");
+      batch.assertAttributeEquals("message.source", "dt");
+    }
+  }
+
+  @Test
+  public void testPartialBatchIsEmittedAfterMaxWait() {
+    runner.setProperty(MessageRelayProcessor.BATCH_SIZE, "1000");
+    start();
+    runner.setProperty(MessageRelayProcessor.MAX_BATCH_WAIT, "200 ms");
+    events.publish("{\"event\":0}", Map.of("message.source", "dt", "message.type", "A"));
+    events.publish("{\"event\":1}", Map.of("message.source", "dt", "message.type", "B"));
+
+    long start = System.nanoTime();
+    runner.run(1, true, false);
+    long waited = System.nanoTime() - start;
+
+    runner.assertAllFlowFilesTransferred(MessageRelayProcessor.REL_SUCCESS, 1);
+    MockFlowFile batch =
+        runner.getFlowFilesForRelationship(MessageRelayProcessor.REL_SUCCESS).getFirst();
+    batch.assertContentEquals("{\"event\":0}\n{\"event\":1}\n");
+    batch.assertAttributeEquals("event.count", "2");
+    // only the attributes shared by all the events are kept
+    batch.assertAttributeEquals("message.source", "dt");
+    assertNull(batch.getAttribute("message.type"));
+    assertTrue(
+        Long.parseLong(batch.getAttribute("event.timestamp.first"))
+            <= Long.parseLong(batch.getAttribute("event.timestamp.last")));
+    assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(150), "emitted before the wait elapsed");
+  }
+
+  @Test
+  public void testNoBatchWithoutEvents() {
+    start();
+    runner.run(1, true, false);
+    runner.assertTransferCount(MessageRelayProcessor.REL_SUCCESS, 0);
+  }
+
+  /* Schedule the processor, registering its listener, with one trigger not waiting for events */
+  private void start() {
+    runner.setProperty(MessageRelayProcessor.MAX_BATCH_WAIT, "0 ms");
+    runner.run(1, false, true);
+    runner.assertTransferCount(MessageRelayProcessor.REL_SUCCESS, 0);
+  }
+}
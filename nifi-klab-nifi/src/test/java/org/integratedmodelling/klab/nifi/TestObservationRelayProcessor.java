@@ -0,0 +1,93 @@
+package org.integratedmodelling.klab.nifi;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.integratedmodelling.klab.nifi.utils.KlabAttributes;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** The routing of {@link ObservationRelayProcessor} against {@link FakeKlabRuntime}. */
+public class TestObservationRelayProcessor {
+
+  private static final String REQUEST =
+      """
+      {
+        "geometry" : {
+          "space" : { "shape" : "EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))" },
+          "time" : { "tstart" : 1325376000000, "tend" : 1356998400000 }
+        },
+        "name" : "region",
+        "semantics" : "earth:Terrestrial earth:Region",
+        "digitalTwin" : "https://services.integratedmodelling.org/runtime/main/dt/relay"
+      }
+      """;
+
+  private FakeKlabRuntime runtime;
+  private FakeKlabRuntime.ControllerService service;
+  private TestRunner runner;
+
+  @BeforeEach
+  public void setUp() throws InitializationException {
+    runtime = new FakeKlabRuntime();
+    service = new FakeKlabRuntime.ControllerService(runtime);
+    runner = TestRunners.newTestRunner(ObservationRelayProcessor.class);
+    runner.addControllerService("klab-controller-service", service);
+    runner.setProperty(
+        ObservationRelayProcessor.KLAB_CONTROLLER_SERVICE, "klab-controller-service");
+    runner.setProperty(
+        ObservationRelayProcessor.OUTPUT_FORMAT, ObservationRelayProcessor.FORMAT_JSON);
+    service.enableAndAwaitReady(runner);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    runner.disableControllerService(service);
+    runtime.close();
+  }
+
+  @Test
+  public void testResolvedObservationIsAChildOfTheRequest() {
+    runner.enqueue(REQUEST, Map.of("request.id", "1"));
+    runner.run();
+
+    runner.assertAllFlowFilesTransferred(ObservationRelayProcessor.REL_SUCCESS, 1);
+    MockFlowFile resolved =
+        runner.getFlowFilesForRelationship(ObservationRelayProcessor.REL_SUCCESS).getFirst();
+    resolved.assertAttributeEquals("request.id", "1");
+    resolved.assertAttributeEquals("observation.id", "1");
+    assertTrue(resolved.getContent().contains("\"region\""));
+  }
+
+  @Test
+  public void testTransientFailureIsRetriedWithTheOriginalContent() {
+    runtime.failureRate(1).transientFailures(true);
+    runner.enqueue(REQUEST);
+    runner.run();
+
+    runner.assertAllFlowFilesTransferred(ObservationRelayProcessor.REL_RETRY, 1);
+    MockFlowFile retry =
+        runner.getFlowFilesForRelationship(ObservationRelayProcessor.REL_RETRY).getFirst();
+    retry.assertContentEquals(REQUEST);
+    retry.assertAttributeEquals(KlabAttributes.KLAB_RETRY_COUNT, "1");
+    assertTrue(retry.isPenalized());
+  }
+
+  @Test
+  public void testPermanentFailureKeepsTheOriginalContent() {
+    runtime.failureRate(1);
+    runner.enqueue(REQUEST);
+    runner.run();
+
+    runner.assertAllFlowFilesTransferred(ObservationRelayProcessor.REL_FAILURE, 1);
+    runner
+        .getFlowFilesForRelationship(ObservationRelayProcessor.REL_FAILURE)
+        .getFirst()
+        .assertContentEquals(REQUEST);
+  }
+}
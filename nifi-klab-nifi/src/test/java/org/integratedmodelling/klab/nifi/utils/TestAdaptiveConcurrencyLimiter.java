@@ -0,0 +1,115 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class TestAdaptiveConcurrencyLimiter {
+
+  @Test
+  public void testPermitsAreLimited() throws InterruptedException {
+    var limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 1, TimeUnit.SECONDS);
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    assertFalse(limiter.acquire(20, TimeUnit.MILLISECONDS));
+
+    limiter.release();
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    assertEquals(2, limiter.getInFlight());
+    assertEquals(2, limiter.getLimit());
+  }
+
+  @Test
+  public void testWaitingCallerGetsReleasedPermit() throws Exception {
+    var limiter = new AdaptiveConcurrencyLimiter(1, 1, 10, 1, TimeUnit.SECONDS);
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+
+    var waiting =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return limiter.acquire(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                return false;
+              }
+            });
+    Thread.sleep(50);
+    limiter.release(System.nanoTime(), false);
+    assertTrue(waiting.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testLimitGrowsAdditivelyUnderLoad() throws InterruptedException {
+    var limiter = new AdaptiveConcurrencyLimiter(4, 1, 10, 1, TimeUnit.SECONDS);
+    // one full window of fast completions at the limit grows it by one
+    for (int i = 0; i < 4; i++) {
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    }
+    for (int i = 0; i < 4; i++) {
+      limiter.release(System.nanoTime(), false);
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(4, limiter.getInFlight());
+    assertTrue(limiter.getLimit() >= 4 && limiter.getLimit() <= 5);
+    for (int i = 0; i < 40; i++) {
+      limiter.release(System.nanoTime(), false);
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    }
+    assertTrue(limiter.getLimit() > 5);
+  }
+
+  @Test
+  public void testUnusedLimitDoesNotGrow() throws InterruptedException {
+    var limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 1, TimeUnit.SECONDS);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+      limiter.release(System.nanoTime(), false);
+    }
+    assertEquals(10, limiter.getLimit());
+  }
+
+  @Test
+  public void testLimitShrinksOnFailuresAndSlowSubmissions() throws InterruptedException {
+    var limiter = new AdaptiveConcurrencyLimiter(10, 2, 100, 20, TimeUnit.MILLISECONDS);
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    limiter.release(System.nanoTime(), true);
+    assertEquals(9, limiter.getLimit());
+
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    long start = System.nanoTime();
+    Thread.sleep(50);
+    limiter.release(start, false);
+    assertEquals(8, limiter.getLimit());
+
+    for (int i = 0; i < 50; i++) {
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+      limiter.release(System.nanoTime(), true);
+    }
+    assertEquals(2, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void testConcurrentFailuresShrinkTheLimitOnce() throws InterruptedException {
+    var limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 1, TimeUnit.SECONDS);
+    long[] starts = new long[5];
+    for (int i = 0; i < starts.length; i++) {
+      assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+      starts[i] = System.nanoTime();
+    }
+    for (long start : starts) {
+      limiter.release(start, true);
+    }
+    assertEquals(9, limiter.getLimit());
+    assertEquals(0, limiter.getInFlight());
+
+    // a submission made after the decrease shrinks the limit again
+    assertTrue(limiter.acquire(0, TimeUnit.MILLISECONDS));
+    limiter.release(System.nanoTime(), true);
+    assertEquals(8, limiter.getLimit());
+  }
+}
@@ -0,0 +1,72 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class TestCircuitBreaker {
+
+  @Test
+  public void testOpensWhenFailureRatioIsReached() {
+    var breaker = new CircuitBreaker(4, 50, 1, TimeUnit.MINUTES);
+    breaker.onFailure();
+    breaker.onFailure();
+    breaker.onSuccess();
+    // the window is not full yet
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertTrue(breaker.isOpen());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testOldOutcomesLeaveTheWindow() {
+    var breaker = new CircuitBreaker(4, 75, 1, TimeUnit.MINUTES);
+    breaker.onFailure();
+    breaker.onFailure();
+    for (int i = 0; i < 4; i++) {
+      breaker.onSuccess();
+    }
+    breaker.onFailure();
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void testSingleProbeAfterOpenDuration() throws InterruptedException {
+    var breaker = new CircuitBreaker(1, 100, 20, TimeUnit.MILLISECONDS);
+    breaker.onFailure();
+    assertFalse(breaker.tryAcquire());
+
+    Thread.sleep(50);
+    assertFalse(breaker.isOpen());
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+    assertTrue(breaker.isOpen());
+
+    // a probe that was not made lets another caller probe
+    breaker.release();
+    assertTrue(breaker.tryAcquire());
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void testFailedProbeReopens() throws InterruptedException {
+    var breaker = new CircuitBreaker(1, 100, 20, TimeUnit.MILLISECONDS);
+    breaker.onFailure();
+    Thread.sleep(50);
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+  }
+}
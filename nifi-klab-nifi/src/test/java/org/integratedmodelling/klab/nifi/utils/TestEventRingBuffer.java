@@ -0,0 +1,129 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.Test;
+
+public class TestEventRingBuffer {
+
+  /* A listener stuck on its first event until released, recording what it receives */
+  private static final class StuckListener implements Consumer<Integer> {
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Integer> received = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void accept(Integer event) {
+      received.add(event);
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void await(List<Integer> received, int size) throws InterruptedException {
+    for (int i = 0; i < 200 && received.size() < size; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testDropOldestSkipsOverwrittenEvents() throws Exception {
+    var buffer =
+        new EventRingBuffer<Integer>(
+            2, EventRingBuffer.OverflowPolicy.DROP_OLDEST, "test-", e -> {});
+    var listener = new StuckListener();
+    buffer.subscribe(listener, "stuck");
+
+    buffer.publish(0);
+    assertTrue(listener.started.await(2, TimeUnit.SECONDS));
+    for (int i = 1; i <= 4; i++) {
+      assertTrue(buffer.publish(i));
+    }
+    assertEquals(2, buffer.getStatistics().get(0).getLag());
+    assertEquals(2, buffer.getStatistics().get(0).getDropped());
+
+    listener.release.countDown();
+    await(listener.received, 3);
+    assertEquals(List.of(0, 3, 4), listener.received);
+    buffer.close();
+  }
+
+  @Test
+  public void testDropNewestKeepsBufferedEvents() throws Exception {
+    var buffer =
+        new EventRingBuffer<Integer>(
+            2, EventRingBuffer.OverflowPolicy.DROP_NEWEST, "test-", e -> {});
+    var listener = new StuckListener();
+    buffer.subscribe(listener, "stuck");
+
+    buffer.publish(0);
+    assertTrue(listener.started.await(2, TimeUnit.SECONDS));
+    assertTrue(buffer.publish(1));
+    assertTrue(buffer.publish(2));
+    assertFalse(buffer.publish(3));
+
+    listener.release.countDown();
+    await(listener.received, 3);
+    assertEquals(List.of(0, 1, 2), listener.received);
+    assertEquals(1, buffer.getStatistics().get(0).getDropped());
+    buffer.close();
+  }
+
+  @Test
+  public void testBlockWaitsForTheSlowestListener() throws Exception {
+    var buffer =
+        new EventRingBuffer<Integer>(1, EventRingBuffer.OverflowPolicy.BLOCK, "test-", e -> {});
+    var listener = new StuckListener();
+    buffer.subscribe(listener, "stuck");
+
+    buffer.publish(0);
+    assertTrue(listener.started.await(2, TimeUnit.SECONDS));
+    buffer.publish(1);
+
+    var publisher = new Thread(() -> buffer.publish(2));
+    publisher.start();
+    publisher.join(100);
+    assertTrue(publisher.isAlive());
+
+    listener.release.countDown();
+    publisher.join(2000);
+    assertFalse(publisher.isAlive());
+    await(listener.received, 3);
+    assertEquals(List.of(0, 1, 2), listener.received);
+    buffer.close();
+  }
+
+  @Test
+  public void testBlockedPublisherIsWokenByFilteredEvents() throws Exception {
+    var buffer =
+        new EventRingBuffer<Integer>(1, EventRingBuffer.OverflowPolicy.BLOCK, "test-", e -> {});
+    List<Integer> received = new CopyOnWriteArrayList<>();
+    buffer.subscribe(received::add, event -> event % 100 == 0, "filtered");
+
+    // the ring is full after every event, and most are rejected by the filter
+    var publisher =
+        new Thread(
+            () -> {
+              for (int i = 0; i < 1000; i++) {
+                buffer.publish(i);
+              }
+            });
+    publisher.start();
+    publisher.join(5000);
+    assertFalse(publisher.isAlive());
+    await(received, 10);
+    assertEquals(List.of(0, 100, 200, 300, 400, 500, 600, 700, 800, 900), received);
+    buffer.close();
+  }
+}
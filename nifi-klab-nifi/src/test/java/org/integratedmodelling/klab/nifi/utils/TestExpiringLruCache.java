@@ -0,0 +1,47 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class TestExpiringLruCache {
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() {
+    var cache = new ExpiringLruCache<String, String>(2, 0);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.get("a");
+    cache.put("c", "3");
+
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("3", cache.get("c"));
+    assertEquals(1, cache.getStatistics().getEvictions());
+  }
+
+  @Test
+  public void testExpiredEntriesAreReloaded() throws InterruptedException {
+    var cache = new ExpiringLruCache<String, Integer>(10, 20);
+    var loads = new AtomicInteger();
+
+    cache.get("a", key -> loads.incrementAndGet());
+    cache.get("a", key -> loads.incrementAndGet());
+    assertEquals(1, loads.get());
+
+    Thread.sleep(50);
+    cache.get("a", key -> loads.incrementAndGet());
+    assertEquals(2, loads.get());
+    assertEquals(1, cache.getStatistics().getHits());
+    assertEquals(2, cache.getStatistics().getMisses());
+  }
+
+  @Test
+  public void testNullValuesAreNotCached() {
+    var cache = new ExpiringLruCache<String, String>(10, 0);
+    assertNull(cache.get("a", key -> null));
+    assertEquals(0, cache.size());
+  }
+}
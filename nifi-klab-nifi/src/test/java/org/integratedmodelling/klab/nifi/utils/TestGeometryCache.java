@@ -0,0 +1,70 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.integratedmodelling.klab.api.geometry.Geometry;
+import org.integratedmodelling.klab.nifi.CacheStatistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TestGeometryCache {
+
+  private static final String SHAPE = "POLYGON((33 -7, 35 -7, 35 -9, 33 -7))";
+
+  private CacheStatistics before;
+
+  @BeforeEach
+  public void setUp() {
+    GeometryCache.clear();
+    // the statistics are cumulative and the cache is shared, so only count from here
+    before = GeometryCache.getStatistics();
+  }
+
+  private static KlabObservationNifiRequest.Geometry geometry(String shape, String tunit)
+      throws KlabNifiException {
+    return new KlabObservationNifiRequest.Geometry.Builder()
+        .setSpace(new KlabObservationNifiRequest.Geometry.Space.Builder().setShape(shape).build())
+        .setTime(
+            new KlabObservationNifiRequest.Geometry.Time.Builder()
+                .setTime(1325376000000L, 1356998400000L)
+                .setTunit(tunit)
+                .build())
+        .build();
+  }
+
+  private void assertCounts(long hits, long misses) {
+    CacheStatistics after = GeometryCache.getStatistics();
+    assertEquals(hits, after.getHits() - before.getHits(), "hits");
+    assertEquals(misses, after.getMisses() - before.getMisses(), "misses");
+  }
+
+  @Test
+  public void testEquivalentRequestsShareTheGeometry() throws Exception {
+    Geometry first = GeometryCache.get(geometry(SHAPE, "year"));
+    assertCounts(0, 1);
+
+    assertSame(first, GeometryCache.get(geometry(SHAPE, "year")));
+    // formatting differences in the shape and the case of the unit are not significant
+    assertSame(
+        first, GeometryCache.get(geometry(" POLYGON((33 -7,  35 -7, 35 -9, 33 -7)) ", "Year")));
+    assertCounts(2, 1);
+  }
+
+  @Test
+  public void testDifferentRequestsBuildTheirOwnGeometry() throws Exception {
+    Geometry first = GeometryCache.get(geometry(SHAPE, "year"));
+    assertNotSame(first, GeometryCache.get(geometry("POLYGON((0 0, 1 0, 1 1, 0 0))", "year")));
+    assertNotSame(first, GeometryCache.get(geometry(SHAPE, "month")));
+    assertCounts(0, 3);
+  }
+
+  @Test
+  public void testClearDropsTheCachedGeometries() throws Exception {
+    Geometry first = GeometryCache.get(geometry(SHAPE, "year"));
+    GeometryCache.clear();
+    assertNotSame(first, GeometryCache.get(geometry(SHAPE, "year")));
+    assertCounts(0, 2);
+  }
+}
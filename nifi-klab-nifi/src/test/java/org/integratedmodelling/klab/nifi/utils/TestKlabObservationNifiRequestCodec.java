@@ -0,0 +1,93 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class TestKlabObservationNifiRequestCodec {
+
+  private static final String PAYLOAD =
+      """
+      {
+        "geometry" : {
+          "space" : {
+            "shape" : "EPSG:4326 POLYGON((33.796 -7.086, 35.946 -7.086, 35.946 -9.41, 33.796 -9.41, 33.796 -7.086))",
+            "sgrid" : "1.km",
+            "proj" : "EPSG:4326"
+          },
+          "time" : {
+            "tstart" : 1325376000000,
+            "tend" : 1356998400000,
+            "tunit" : "year",
+            "tscope" : 1
+          }
+        },
+        "name" : "example_observation",
+        "semantics" : "earth:Terrestrial earth:Region",
+        "digitalTwin" : "https://services.integratedmodelling.org/runtime/main/dt/ESA_INSTITUTIONAL.xxxyyyzzz",
+        "observationId" : -1,
+        "observation" : { "id" : 12, "metadata" : { "a" : [1, 2, 3] } }
+      }
+      """;
+
+  private static final byte[] PAYLOAD_BYTES = PAYLOAD.getBytes(StandardCharsets.UTF_8);
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    var request = KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(PAYLOAD_BYTES));
+    assertEquals("example_observation", request.getObservationName());
+    assertEquals("earth:Terrestrial earth:Region", request.getObservationSemantics());
+    assertEquals(-1, request.getObservationId());
+    assertEquals(1356998400000L, request.getGeometry().getTime().getTend());
+    assertEquals("1.km", request.getGeometry().getSpace().getSgrid());
+
+    var out = new ByteArrayOutputStream();
+    KlabObservationNifiRequestCodec.write(request, out);
+    var copy = KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(request.getDigitalTwin(), copy.getDigitalTwin());
+    assertEquals(
+        request.getGeometry().getSpace().getShape(), copy.getGeometry().getSpace().getShape());
+    assertEquals(
+        request.getGeometry().getTime().getTstart(), copy.getGeometry().getTime().getTstart());
+    assertEquals(out.toString(StandardCharsets.UTF_8), new Gson().toJson(copy));
+  }
+
+  @Test
+  public void testMissingSemanticsIsRejected() {
+    var payload = "{\"name\":\"x\"}".getBytes(StandardCharsets.UTF_8);
+    assertThrows(
+        KlabNifiException.class,
+        () -> KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(payload)));
+  }
+
+  @Test
+  public void testInvalidGeometriesAreRejected() {
+    String space =
+        "\"space\" : { \"shape\" : \"EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))\" }";
+    String time = "\"time\" : { \"tstart\" : 1325376000000, \"tend\" : 1356998400000 }";
+    for (String geometry :
+        List.of(
+            "",
+            "\"geometry\" : { %s }, ".formatted(time),
+            "\"geometry\" : { %s }, ".formatted(space),
+            "\"geometry\" : { \"space\" : { \"sgrid\" : \"1.km\" }, %s }, ".formatted(time),
+            "\"geometry\" : { %s, \"time\" : { \"tstart\" : 2, \"tend\" : 1 } }, "
+                .formatted(space))) {
+      var payload =
+          "{ %s\"name\" : \"x\", \"semantics\" : \"earth:Region\" }"
+              .formatted(geometry)
+              .getBytes(StandardCharsets.UTF_8);
+      assertThrows(
+          KlabNifiException.class,
+          () -> KlabObservationNifiRequestCodec.read(new ByteArrayInputStream(payload)),
+          geometry);
+    }
+  }
+}
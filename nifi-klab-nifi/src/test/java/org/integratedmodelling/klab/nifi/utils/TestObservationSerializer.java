@@ -0,0 +1,97 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.integratedmodelling.klab.api.knowledge.observation.Observation;
+import org.junit.jupiter.api.Test;
+
+public class TestObservationSerializer {
+
+  /* An observation answering only the getters the serializer uses */
+  private static Observation observation(long id, String name, String urn) {
+    Map<String, Object> values = new HashMap<>();
+    values.put("getId", id);
+    values.put("getName", name);
+    values.put("getUrn", urn);
+    return (Observation)
+        Proxy.newProxyInstance(
+            Observation.class.getClassLoader(),
+            new Class<?>[] {Observation.class},
+            (proxy, method, args) -> values.get(method.getName()));
+  }
+
+  private static byte[] write(Observation observation, ObservationSerializer.Format format)
+      throws Exception {
+    var out = new ByteArrayOutputStream();
+    ObservationSerializer.write(observation, format, out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testCompactJsonSkipsNullFields() throws Exception {
+    Observation observation = observation(42, "elevation", "geography:Elevation");
+    String json =
+        new String(write(observation, ObservationSerializer.Format.JSON), StandardCharsets.UTF_8);
+    assertEquals("{\"id\":42,\"name\":\"elevation\",\"urn\":\"geography:Elevation\"}", json);
+  }
+
+  @Test
+  public void testCborMatchesJsonFields() throws Exception {
+    JsonNode node =
+        new ObjectMapper(new CBORFactory())
+            .readTree(write(observation(7, "rain", null), ObservationSerializer.Format.CBOR));
+    assertEquals(7, node.get("id").asLong());
+    assertEquals("rain", node.get("name").asText());
+    assertFalse(node.has("urn"));
+  }
+
+  @Test
+  public void testAvroEmbedsTheSchema() throws Exception {
+    byte[] data = write(observation(3, "soil", null), ObservationSerializer.Format.AVRO);
+    try (var reader =
+        new DataFileStream<GenericRecord>(
+            new ByteArrayInputStream(data), new GenericDatumReader<>())) {
+      assertEquals(ObservationSerializer.SCHEMA, reader.getSchema());
+      GenericRecord record = reader.next();
+      assertEquals(3L, record.get("id"));
+      assertEquals("soil", record.get("name").toString());
+      assertNull(record.get("urn"));
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  @Test
+  public void testNoFormatClosesTheFlowFileStream() throws Exception {
+    for (ObservationSerializer.Format format :
+        EnumSet.complementOf(EnumSet.of(ObservationSerializer.Format.KLAB_JSON))) {
+      var closed = new AtomicBoolean();
+      var out =
+          new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+              closed.set(true);
+            }
+          };
+      ObservationSerializer.write(observation(1, "soil", null), format, out);
+      assertFalse(closed.get(), format + " closed the stream");
+      assertTrue(out.size() > 0, format + " wrote nothing");
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+public class TestRequestFingerprint {
+
+  private static String fingerprint(String name, String shape, String tunit) throws Exception {
+    return RequestFingerprint.of(request(name, shape, tunit, -1));
+  }
+
+  private static KlabObservationNifiRequest request(
+      String name, String shape, String tunit, long observationId) throws Exception {
+    String json =
+        """
+        {
+          "geometry" : {
+            "space" : { "shape" : "%s", "sgrid" : "1.km", "proj" : "EPSG:4326" },
+            "time" : { "tstart" : 1325376000000, "tend" : 1356998400000, "tunit" : "%s",
+                       "tscope" : 1 }
+          },
+          "name" : "%s",
+          "semantics" : "earth:Terrestrial earth:Region",
+          "observationId" : %d
+        }
+        """
+            .formatted(shape, tunit, name, observationId);
+    return KlabObservationNifiRequestCodec.read(
+        new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testFormattingDoesNotChangeTheFingerprint() throws Exception {
+    assertEquals(
+        fingerprint("region", "EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))", "year"),
+        fingerprint("region", "EPSG:4326  POLYGON((33 -7,  35 -7, 35 -9, 33 -7)) ", "YEAR"));
+  }
+
+  @Test
+  public void testDifferentRequestsHaveDifferentFingerprints() throws Exception {
+    String shape = "EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))";
+    assertNotEquals(fingerprint("region", shape, "year"), fingerprint("region2", shape, "year"));
+    assertNotEquals(fingerprint("region", shape, "year"), fingerprint("region", shape, "month"));
+  }
+
+  @Test
+  public void testFingerprintFollowsTheSubmittedObservationId() throws Exception {
+    String shape = "EPSG:4326 POLYGON((33 -7, 35 -7, 35 -9, 33 -7))";
+    KlabObservationNifiRequest resolved = request("region", shape, "year", 42);
+    assertNotEquals(fingerprint("region", shape, "year"), RequestFingerprint.of(resolved));
+    // a request submitted as unresolved is fingerprinted as any other unresolved request
+    assertEquals(
+        fingerprint("region", shape, "year"),
+        RequestFingerprint.of(resolved.withObservationId(KlabAttributes.KLAB_UNRESOLVED_OBS_ID)));
+  }
+}
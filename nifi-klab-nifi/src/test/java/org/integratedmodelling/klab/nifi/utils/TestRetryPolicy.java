@@ -0,0 +1,72 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.integratedmodelling.klab.api.exceptions.KlabAuthorizationException;
+import org.integratedmodelling.klab.nifi.SubmissionRejectedException;
+import org.junit.jupiter.api.Test;
+
+public class TestRetryPolicy {
+
+  @Test
+  public void testTransientFailuresAreRecognizedThroughWrappers() {
+    assertTrue(FailureClassifier.isTransient(new ExecutionException(new TimeoutException())));
+    assertTrue(
+        FailureClassifier.isTransient(
+            new CompletionException(new UncheckedIOException(new ConnectException("refused")))));
+    assertTrue(FailureClassifier.isTransient(new SubmissionRejectedException("saturated")));
+    assertFalse(FailureClassifier.isTransient(new IllegalArgumentException("bad semantics")));
+    assertFalse(
+        FailureClassifier.isTransient(
+            new ExecutionException(new KlabAuthorizationException(new ConnectException()))));
+  }
+
+  @Test
+  public void testRetriesUntilMaxAttempts() {
+    var policy = new RetryPolicy(3, 1, 10, TimeUnit.SECONDS);
+    var error = new ExecutionException(new TimeoutException());
+
+    Map<String, String> first = policy.retry(Map.of(), error);
+    assertNotNull(first);
+    assertEquals("1", first.get(KlabAttributes.KLAB_RETRY_COUNT));
+    long retryAfter = Long.parseLong(first.get(KlabAttributes.KLAB_RETRY_AFTER));
+    assertTrue(retryAfter > System.currentTimeMillis());
+
+    Map<String, String> second = policy.retry(first, error);
+    assertNotNull(second);
+    assertEquals("2", second.get(KlabAttributes.KLAB_RETRY_COUNT));
+    // the third attempt was the last one
+    assertNull(policy.retry(second, error));
+  }
+
+  @Test
+  public void testPermanentFailuresAreNotRetried() {
+    var policy = new RetryPolicy(3, 1, 10, TimeUnit.SECONDS);
+    assertNull(policy.retry(Map.of(), new IllegalStateException("invalid observation")));
+    assertNull(policy.retry(Map.of(), null));
+  }
+
+  @Test
+  public void testBackoffGrowsExponentiallyWithJitterUpToMax() {
+    var policy = new RetryPolicy(100, 1000, 60_000, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 100; i++) {
+      long first = policy.backoffMillis(1);
+      assertTrue(first >= 500 && first <= 1000, "first backoff " + first);
+      long third = policy.backoffMillis(3);
+      assertTrue(third >= 2000 && third <= 4000, "third backoff " + third);
+      long capped = policy.backoffMillis(50);
+      assertTrue(capped >= 30_000 && capped <= 60_000, "capped backoff " + capped);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import org.integratedmodelling.klab.api.scope.Scope;
+import org.junit.jupiter.api.Test;
+
+public class TestScopePool {
+
+  private final List<Scope> evicted = new ArrayList<>();
+
+  private static Scope scope(String name) {
+    return (Scope)
+        Proxy.newProxyInstance(
+            Scope.class.getClassLoader(),
+            new Class<?>[] {Scope.class},
+            (proxy, method, args) ->
+                switch (method.getName()) {
+                  case "toString" -> name;
+                  case "hashCode" -> System.identityHashCode(proxy);
+                  case "equals" -> proxy == args[0];
+                  default -> null;
+                });
+  }
+
+  @Test
+  public void testLeastRecentlyUsedScopeIsEvicted() {
+    var pool = new ScopePool(2, 0, evicted::add);
+    Scope a = scope("a");
+    Scope b = scope("b");
+    Scope c = scope("c");
+    pool.putIfAbsent("a", a);
+    pool.putIfAbsent("b", b);
+    pool.get("a");
+    pool.putIfAbsent("c", c);
+
+    assertEquals(List.of(b), evicted);
+    assertSame(a, pool.get("a"));
+    assertNull(pool.get("b"));
+    assertSame(c, pool.get("c"));
+    assertEquals(1, pool.getStatistics().getEvictions());
+  }
+
+  @Test
+  public void testExistingScopeIsKept() {
+    var pool = new ScopePool(2, 0, evicted::add);
+    Scope a = scope("a");
+    assertSame(a, pool.putIfAbsent("a", a));
+    // a concurrent connection to the same DT loses to the pooled scope
+    assertSame(a, pool.putIfAbsent("a", scope("a2")));
+    assertTrue(evicted.isEmpty());
+  }
+
+  @Test
+  public void testIdleScopesAreEvicted() throws InterruptedException {
+    var pool = new ScopePool(10, 20, evicted::add);
+    Scope idle = scope("idle");
+    Scope used = scope("used");
+    pool.putIfAbsent("idle", idle);
+    pool.putIfAbsent("used", used);
+
+    Thread.sleep(50);
+    pool.get("used");
+    pool.evictIdle();
+
+    assertEquals(List.of(idle), evicted);
+    assertTrue(pool.contains("used"));
+  }
+
+  @Test
+  public void testClearReleasesEveryScope() {
+    var pool = new ScopePool(10, 0, evicted::add);
+    Scope a = scope("a");
+    Scope b = scope("b");
+    pool.putIfAbsent("a", a);
+    pool.putIfAbsent("b", b);
+    // without an idle timeout, only the size evicts
+    pool.evictIdle();
+    assertTrue(evicted.isEmpty());
+
+    pool.clear();
+    assertEquals(List.of(a, b), evicted);
+    assertEquals(0, pool.getStatistics().getSize());
+  }
+
+  @Test
+  public void testScopeEvictedInUseIsReleasedByItsLastUser() {
+    var pool = new ScopePool(1, 0, evicted::add);
+    Scope a = scope("a");
+    pool.putIfAbsent("a", a);
+    pool.acquire(a);
+    pool.acquire(a);
+    pool.putIfAbsent("b", scope("b"));
+
+    // out of the pool, but not released under the submissions still using it
+    assertFalse(pool.contains("a"));
+    assertTrue(evicted.isEmpty());
+    pool.release(a);
+    assertTrue(evicted.isEmpty());
+    pool.release(a);
+    assertEquals(List.of(a), evicted);
+  }
+
+  @Test
+  public void testScopesInUseAreNotIdle() throws InterruptedException {
+    var pool = new ScopePool(10, 20, evicted::add);
+    Scope busy = scope("busy");
+    pool.putIfAbsent("busy", busy);
+    pool.acquire(busy);
+
+    Thread.sleep(50);
+    pool.evictIdle();
+    assertTrue(pool.contains("busy"));
+
+    pool.release(busy);
+    pool.evictIdle();
+    assertEquals(List.of(busy), evicted);
+  }
+
+  @Test
+  public void testScopesInUseWhenClearedAreReleasedLater() {
+    var pool = new ScopePool(10, 0, evicted::add);
+    Scope a = scope("a");
+    Scope b = scope("b");
+    pool.putIfAbsent("a", a);
+    pool.putIfAbsent("b", b);
+    pool.acquire(b);
+
+    pool.clear();
+    assertEquals(List.of(a), evicted);
+    pool.release(b);
+    assertEquals(List.of(a, b), evicted);
+  }
+}
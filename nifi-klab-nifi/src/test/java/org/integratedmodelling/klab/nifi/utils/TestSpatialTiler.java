@@ -0,0 +1,70 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.io.WKTReader;
+
+public class TestSpatialTiler {
+
+  private static KlabObservationNifiRequest request(String wkt) throws KlabNifiException {
+    return new KlabObservationNifiRequest.Builder()
+        .setGeometry(
+            new KlabObservationNifiRequest.Geometry.Builder()
+                .setSpace(
+                    new KlabObservationNifiRequest.Geometry.Space.Builder().setShape(wkt).build())
+                .setTime(
+                    new KlabObservationNifiRequest.Geometry.Time.Builder()
+                        .setTime(1325376000000L, 1356998400000L)
+                        .build())
+                .build())
+        .setObservationName("region")
+        .setObservationSemantics("earth:Terrestrial earth:Region")
+        .build();
+  }
+
+  @Test
+  public void testTilesCoverTheShape() throws Exception {
+    var tiles = SpatialTiler.tile(request("POLYGON((0 0, 4 0, 4 2, 0 2, 0 0))"), 2, 2);
+
+    assertEquals(4, tiles.size());
+    double area = 0;
+    for (var tile : tiles) {
+      String shape = tile.request().getGeometry().getSpace().getShape();
+      assertTrue(shape.startsWith("EPSG:4326 "));
+      area += new WKTReader().read(shape.substring("EPSG:4326 ".length())).getArea();
+      assertEquals(
+          "region_" + tile.column() + "_" + tile.row(), tile.request().getObservationName());
+    }
+    assertEquals(8.0, area, 1e-9);
+  }
+
+  @Test
+  public void testCellsOutsideTheShapeAreDropped() throws Exception {
+    // the upper right cell only touches the triangle in a point
+    var tiles = SpatialTiler.tile(request("POLYGON((0 0, 2 0, 0 2, 0 0))"), 2, 2);
+
+    assertEquals(3, tiles.size());
+    assertTrue(tiles.stream().noneMatch(t -> t.column() == 1 && t.row() == 1));
+  }
+
+  @Test
+  public void testTilesOfConcaveShapesArePolygonal() throws Exception {
+    // the cells of the upper rows share an edge with the inner corner of the L
+    var tiles = SpatialTiler.tile(request("POLYGON((0 0, 3 0, 3 1, 1 1, 1 3, 0 3, 0 0))"), 1, 3);
+
+    assertEquals(3, tiles.size());
+    double area = 0;
+    for (var tile : tiles) {
+      String shape = tile.request().getGeometry().getSpace().getShape();
+      Geometry part = new WKTReader().read(shape.substring("EPSG:4326 ".length()));
+      assertInstanceOf(Polygonal.class, part, shape);
+      area += part.getArea();
+    }
+    assertEquals(5.0, area, 1e-9);
+  }
+}
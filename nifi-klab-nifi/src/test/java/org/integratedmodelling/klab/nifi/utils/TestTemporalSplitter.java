@@ -0,0 +1,62 @@
+package org.integratedmodelling.klab.nifi.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Instant;
+import org.junit.jupiter.api.Test;
+
+public class TestTemporalSplitter {
+
+  private static KlabObservationNifiRequest request(
+      String start, String end, String tunit, int tscope) throws KlabNifiException {
+    return new KlabObservationNifiRequest.Builder()
+        .setGeometry(
+            new KlabObservationNifiRequest.Geometry.Builder()
+                .setSpace(
+                    new KlabObservationNifiRequest.Geometry.Space.Builder()
+                        .setShape(0, 0, 1, 1)
+                        .build())
+                .setTime(
+                    new KlabObservationNifiRequest.Geometry.Time.Builder()
+                        .setTime(
+                            Instant.parse(start).toEpochMilli(), Instant.parse(end).toEpochMilli())
+                        .setTunit(tunit)
+                        .setTscope(tscope)
+                        .build())
+                .build())
+        .setObservationName("region")
+        .setObservationSemantics("earth:Terrestrial earth:Region")
+        .build();
+  }
+
+  @Test
+  public void testYearsAreSplitOnTheCalendar() throws Exception {
+    var slices =
+        TemporalSplitter.split(
+            request("2012-01-01T00:00:00Z", "2022-01-01T00:00:00Z", "year", 1), 100);
+
+    assertEquals(10, slices.size());
+    // 2012 is a leap year
+    assertEquals(Instant.parse("2013-01-01T00:00:00Z").toEpochMilli(), slices.get(0).end());
+    assertEquals(slices.get(0).end(), slices.get(1).start());
+    assertEquals("region_9", slices.get(9).request().getObservationName());
+  }
+
+  @Test
+  public void testLastStepIsTruncated() throws Exception {
+    var slices =
+        TemporalSplitter.split(
+            request("2012-01-01T00:00:00Z", "2012-08-01T00:00:00Z", "month", 3), 100);
+
+    assertEquals(3, slices.size());
+    assertEquals(Instant.parse("2012-08-01T00:00:00Z").toEpochMilli(), slices.get(2).end());
+    assertEquals(slices.get(2).end(), slices.get(2).request().getGeometry().getTime().getTend());
+  }
+
+  @Test
+  public void testTooManyStepsAreRejected() throws Exception {
+    var request = request("2012-01-01T00:00:00Z", "2013-01-01T00:00:00Z", "day", 1);
+    assertThrows(KlabNifiException.class, () -> TemporalSplitter.split(request, 100));
+  }
+}